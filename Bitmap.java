@@ -1,12 +1,26 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 
 /** Looking back, what should have been made different? <br>
@@ -19,7 +33,7 @@ import java.util.stream.Stream;
  * - <s>Gradients should be able to scale automatically, declaring from and to each time can be a hassle.</s> Implemented <br>
  * - Uniform naming, <s> ColorProvider argument should always be called color_provider (instead of color_provider) </s> Done <br>
  * - <s>Pattern should not be too powerful, outsource the fast pattern handler</s><br>
- * - <b>Created pixels should be easy to delete</b> <br>
+ * - <s>Created pixels should be easy to delete</s> checkpoint() and undo() <br>
  */
 class PlaceholderClassToMakeJavaDocRendererWork {}
 
@@ -35,39 +49,386 @@ public class Bitmap {
     public Colors colors = new Colors(); // A object of the colors subclass
     public Shapes shapes = new Shapes(); // A object of the shapes subclass
     public PatternBuilders patternBuilders = new PatternBuilders(); // A object of the patternBuilders subclass
+    public Filters filters = new Filters(); // A object of the filters subclass
+    public Metrics metrics = new Metrics(); // Opt-in instrumentation, disabled by default
+
+    public int max_value = 255; // The maximum value of a color channel, up to 65535 for deep color (16 bit samples)
+    public boolean binary = false; // Whether .ppm and .pgm files are written in the binary formats (P6 / P5)
+    public BitmapFont font = BitmapFont.defaultFont(); // The font of drawText
+    public PPMEncoder.Dither dither = PPMEncoder.Dither.NONE; // How .pbm and .pgm files are dithered when rendered
+    public int render_max_retries = 8; // How often render retries to replace a locked file before giving up
+    public int render_backoff_ms = 50; // The first waiting time between two retries, doubled on each retry (capped at 1s)
+    public boolean strict = false; // Whether shapes that leave the canvas are rejected before anything is drawn (instead of being clipped)
 
     public ArrayList<String> comments = new ArrayList<>();
 
     private String filename; // The filename that is used in the render method
     private int[][][] canvas; // A three dimensional representation of the array columns[rows[pixel[]]]
 
+    // Copy-on-write: the rows of the canvas are the tiles that snapshots and the undo journal share with the canvas.
+    // A shared row is never written, it is copied first. The pixel arrays (int[3]) themselves are never modified
+    // in place, only replaced, so copying a row is a copy of its references.
+    private boolean[] shared_rows;
+    private final ArrayDeque<Map<Integer, int[][]>> undo_journal = new ArrayDeque<>(); // Original rows per checkpoint
+    private boolean[] recorded_rows; // The rows already stored for the latest checkpoint, null without checkpoint
+    public int undo_limit = 32; // How many checkpoints are kept at most
+    private ExecutorService render_executor; // Created on the first renderAsync call
+    // Lazy mode: fills are recorded as regions and only drawn into a row once the row is needed (see setLazy)
+    private boolean lazy = false;
+    private final ArrayList<LazyRegion> lazy_regions = new ArrayList<>();
+    private int[] applied_regions; // Per row: how many of the lazy regions were drawn into it, null if no region is pending
+    // The clip rectangle (inclusive coordinates), intersected with the canvas whenever it is used
+    private int clip_min_x = 1, clip_max_x = Integer.MAX_VALUE, clip_min_y = 1, clip_max_y = Integer.MAX_VALUE;
+    private final ArrayDeque<int[]> clip_stack = new ArrayDeque<>(); // The clip rectangles before each pushClip
+    private PatternProfile pattern_profile; // Only set while profile() runs
+
+    private static final Set<String> PATTERN_NAMES = Set.of("grid", "checkerboard", "stripes", "gradient", "wave", "cells", "bigcells", "dotgrid", "biggrid", "hugegrid", "superhugegrid", "flowergrid", "space", "dotlines", "custom", "opacity", "normal", "smoothed_function");
+    // The patterns that don't only choose one of their slots, see Pattern.isSelector()
+    private static final Set<String> NON_SELECTOR_PATTERNS = Set.of("gradient", "opacity", "normal", "custom", "smoothed_function");
+    // The patterns whose colors don't only depend on the coordinates, see Pattern.isPure()
+    private static final Set<String> IMPURE_PATTERNS = Set.of("opacity", "custom", "smoothed_function");
+
+    public int pattern_registry_size = 256; // How many patterns created by colors.mergeCached() are kept
+    private final Map<List<Object>, Pattern> pattern_registry = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Pattern> eldest) {
+            return size() > pattern_registry_size;
+        }
+    };
+
+    public int tile_cache_size = 64; // How many pre-rendered tiles of periodic patterns are kept (least recently used are dropped)
+    private static final int MAX_TILE_AREA = 1 << 16; // Larger periods are evaluated per pixel
+    private final Map<List<Object>, int[][][]> pattern_tiles = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, int[][][]> eldest) {
+            return size() > tile_cache_size;
+        }
+    };
+
     /** Creates a new Bitmap object
      * d = default (can be left away)
      * @param canvas_width The width of the canvas in pixel
      * @param canvas_height The height of the canvas in pixel
-     * @param filename The name of the file that is created upon execution (must be .ppm or none) | d = Bitmap.ppm
+     * @param filename The name of the file that is created upon execution (must be .ppm, .pbm, .pgm, .qoi or none) | d = Bitmap.ppm
      * @param render_on_init Whether the canvas should be rendered upon execution (file is created / overwritten) | d = true
+     * @param lazy Whether the bitmap starts in the lazy mode, its blank canvas then takes memory per row instead of per pixel | d = false
+     * @see #setLazy(boolean)
      */
-    public Bitmap(int canvas_width, int canvas_height, String filename, boolean render_on_init) {
+    public Bitmap(int canvas_width, int canvas_height, String filename, boolean render_on_init, boolean lazy) {
         this.canvas_width = canvas_width;
         this.canvas_height = canvas_height;
-        canvas = new int[canvas_height][canvas_width][3];
+        shared_rows = new boolean[canvas_height];
+        if (lazy) {
+            // Every row is the same shared blank row until it is written
+            int[][] blank = new int[canvas_width][];
+            Arrays.fill(blank, new int[3]);
+            canvas = new int[canvas_height][][];
+            Arrays.fill(canvas, blank);
+            Arrays.fill(shared_rows, true);
+        } else {
+            canvas = new int[canvas_height][canvas_width][3];
+        }
+        this.lazy = lazy;
         this.filename = filename;
         this.comments.add("#" + filename);
         if (render_on_init) render(true);
     }
 
-    /**@see #Bitmap(int, int, String, boolean) **/
+    /**@see #Bitmap(int, int, String, boolean, boolean) **/
+    public Bitmap(int canvas_width, int canvas_height, String filename, boolean render_on_init) { this(canvas_width, canvas_height, filename, render_on_init, false); }
+
+    /**@see #Bitmap(int, int, String, boolean, boolean) **/
     public Bitmap(int canvas_width, int canvas_height, String filename) { this(canvas_width, canvas_height, filename, true); }
-    /**@see #Bitmap(int, int, String, boolean) **/
+    /**@see #Bitmap(int, int, String, boolean, boolean) **/
     public Bitmap(int canvas_width, int canvas_height) { this(canvas_width, canvas_height, true); }
-    /**@see #Bitmap(int, int, String, boolean) **/
+    /**@see #Bitmap(int, int, String, boolean, boolean) **/
     public Bitmap(int canvas_width, int canvas_height, boolean render_on_init) { this(canvas_width, canvas_height, "Bitmap.ppm", render_on_init); }
 
+    /** Direct access to the canvas. <br>
+     * Writing to the returned array bypasses the copy-on-write mechanism and therefore also changes snapshots and
+     * the undo journal. The pending regions of the lazy mode are drawn first.
+     * @return the canvas as rows[pixel[]], top row first
+     */
     public int[][][] getCanvas() {
+        materialize();
         return canvas;
     }
 
+    /** Switches the lazy mode on or off. <br>
+     * In the lazy mode, fillArea and fillWin with colors and with patterns that only depend on the coordinates are
+     * recorded as regions instead of being drawn. A region that covers the whole canvas replaces everything before it.
+     * render evaluates the regions row by row straight into the encoder, so the pixel of the regions are never held
+     * in memory at once. <br>
+     * Everything else materializes what it needs automatically: drawing (other shapes, opacity patterns) draws the
+     * pending regions into the rows it writes, reading the canvas (getCanvas, filters, resizing, floodFill, blit,
+     * snapshots and checkpoints) draws all of them. Switching the lazy mode off draws all of them as well.
+     * @param lazy Whether fills should be recorded
+     * @see #materialize()
+     */
+    public void setLazy(boolean lazy) {
+        if (!lazy) materialize();
+        this.lazy = lazy;
+    }
+
+    /** Whether fills are recorded as regions instead of being drawn
+     * @see #setLazy(boolean)
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /** Draws the pending regions of the lazy mode into the canvas, called automatically before the canvas is read */
+    public void materialize() {
+        if (applied_regions == null) return;
+        int[][][] rows = new int[canvas_height][][];
+        for (int row = 0; row < canvas_height; row++) {
+            for (int i = applied_regions[row]; i < lazy_regions.size(); i++) {
+                if (lazy_regions.get(i).covers(canvas_height - row)) {
+                    rows[row] = writableRow(row);
+                    break;
+                }
+            }
+        }
+        Convolution.Band draw = (from, to) -> {
+            for (int row = from; row < to; row++) {
+                if (rows[row] == null) continue;
+                for (int i = applied_regions[row]; i < lazy_regions.size(); i++) lazy_regions.get(i).draw(canvas_height - row, rows[row]);
+            }
+        };
+        // A running profile isn't thread safe, the patterns are then evaluated on this thread
+        if (pattern_profile != null) {
+            draw.process(0, canvas_height);
+        } else {
+            Convolution.bands(canvas_height, draw);
+        }
+        lazy_regions.clear();
+        applied_regions = null;
+    }
+
+    /** A fill that was recorded in the lazy mode: a rectangle (already clipped) and exactly one of color, tile or pattern */
+    private static class LazyRegion {
+        final int min_x, max_x, min_y, max_y;
+        final int[] color;
+        final int[][][] tile; // The tile of a periodic pattern, see tileOf
+        final Pattern pattern; // A private copy of the pattern tree, only depends on the coordinates
+
+        LazyRegion(int min_x, int max_x, int min_y, int max_y, int[] color, int[][][] tile, Pattern pattern) {
+            this.min_x = min_x; this.max_x = max_x;
+            this.min_y = min_y; this.max_y = max_y;
+            this.color = color;
+            this.tile = tile;
+            this.pattern = pattern;
+        }
+
+        boolean covers(int y) {
+            return y >= min_y && y <= max_y;
+        }
+
+        // Draws the part of the region in the row of the y-coordinate, may be called from several threads
+        void draw(int y, int[][] pixels) {
+            if (!covers(y)) return;
+            if (color != null) {
+                Arrays.fill(pixels, min_x - 1, max_x, color);
+            } else if (tile != null) {
+                stampTile(tile[(y - 1) % tile.length], pixels, min_x - 1, max_x - min_x + 1);
+            } else {
+                for (int x = min_x; x <= max_x; x++) pixels[x - 1] = pattern.run(x, y).color;
+            }
+        }
+    }
+
+    /** Records a fill in the lazy mode
+     * @return false if the color provider has to be drawn right away (it reads the canvas or runs custom functions)
+     */
+    private boolean recordLazily(int min_x, int max_x, int min_y, int max_y, ColorProvider color_provider) {
+        int[] color = null;
+        int[][][] tile = null;
+        Pattern pattern = null;
+        if (color_provider.getClass() == Color.class) {
+            color = ((Color) color_provider).color;
+        } else {
+            if (pattern_profile != null) return false;
+            tile = tileOf(color_provider, (long) (max_x - min_x + 1) * (max_y - min_y + 1));
+            if (tile == null) {
+                if (!((Pattern) color_provider).isPure()) return false;
+                // A copy, so later changes of the pattern (auto bounds, slots) don't change the recorded fill
+                ColorProvider copy = ((Pattern) color_provider).optimized();
+                if (copy.getClass() == Color.class) color = ((Color) copy).color; else pattern = (Pattern) copy;
+            }
+        }
+        if (min_x == 1 && max_x == canvas_width && min_y == 1 && max_y == canvas_height) {
+            // Nothing before the region stays visible, the rows are replaced by a shared blank row
+            int[][] blank = new int[canvas_width][];
+            Arrays.fill(blank, new int[3]);
+            for (int row = 0; row < canvas_height; row++) {
+                recordRow(row);
+                canvas[row] = blank;
+                shared_rows[row] = true;
+            }
+            lazy_regions.clear();
+            applied_regions = null;
+        }
+        if (applied_regions == null) applied_regions = new int[canvas_height];
+        lazy_regions.add(new LazyRegion(min_x, max_x, min_y, max_y, color, tile, pattern));
+        return true;
+    }
+
+    /** The rows of the canvas for an encoder, the pending regions of the lazy mode are drawn into copies of the rows
+     * block by block while encoding
+     * @param snapshot Whether the rows are taken like a snapshot, so the canvas can be changed while they are encoded
+     */
+    PPMEncoder.RowSource canvasRows(boolean snapshot) {
+        if (pattern_profile != null) materialize(); // The encoders request blocks in parallel, a profile isn't thread safe
+        if (applied_regions == null) return PPMEncoder.RowSource.of(snapshot ? snapshot().rows : canvas);
+        if (snapshot) Arrays.fill(shared_rows, true);
+        int[][][] rows = snapshot ? canvas.clone() : canvas;
+        LazyRegion[] regions = lazy_regions.toArray(new LazyRegion[0]);
+        int[] applied = snapshot ? applied_regions.clone() : applied_regions;
+        int width = canvas_width, height = canvas_height;
+        return new PPMEncoder.RowSource() {
+            public int width() { return width; }
+            public int height() { return height; }
+            public int[][][] rows(int from, int to) {
+                int[][][] block = new int[to - from][][];
+                for (int row = from; row < to; row++) {
+                    int[][] pixels = rows[row];
+                    for (int i = applied[row]; i < regions.length; i++) {
+                        if (!regions[i].covers(height - row)) continue;
+                        if (pixels == rows[row]) pixels = pixels.clone(); // The canvas itself is only read
+                        regions[i].draw(height - row, pixels);
+                    }
+                    block[row - from] = pixels;
+                }
+                return block;
+            }
+        };
+    }
+
+    /** An immutable state of the canvas, created by {@link #snapshot()}.
+     * The rows are shared with the canvas until either side is written.
+     */
+    public static class Snapshot {
+        final int[][][] rows;
+        public final int width;
+        public final int height;
+
+        private Snapshot(int[][][] rows, int width, int height) {
+            this.rows = rows;
+            this.width = width; this.height = height;
+        }
+    }
+
+    /** Takes a snapshot of the canvas. <br>
+     * No pixel is copied, the rows are shared and only copied once they are written again (O(rows)).
+     * @return the snapshot
+     * @see #restore(Snapshot)
+     */
+    public Snapshot snapshot() {
+        materialize();
+        Arrays.fill(shared_rows, true);
+        return new Snapshot(canvas.clone(), canvas_width, canvas_height);
+    }
+
+    /** Restores the canvas to the state of a snapshot (O(rows)). <br>
+     * The restore itself can be undone, unless the snapshot has a different size than the canvas.
+     * @param snapshot The snapshot that was taken with {@link #snapshot()}
+     */
+    public void restore(Snapshot snapshot) {
+        materialize();
+        if (snapshot.width != canvas_width || snapshot.height != canvas_height) {
+            replaceCanvas(snapshot.rows.clone());
+        } else {
+            for (int row = 0; row < canvas_height; row++) {
+                recordRow(row);
+                canvas[row] = snapshot.rows[row];
+            }
+        }
+        Arrays.fill(shared_rows, true);
+    }
+
+    /** Marks the current state of the canvas, to which {@link #undo()} returns. <br>
+     * Only the rows that are written after the checkpoint are stored.
+     * At most {@link #undo_limit} checkpoints are kept, the oldest ones are dropped.
+     */
+    public void checkpoint() {
+        materialize();
+        undo_journal.push(new HashMap<>());
+        while (undo_journal.size() > Math.max(undo_limit, 0)) undo_journal.removeLast();
+        recorded_rows = undo_journal.isEmpty() ? null : new boolean[canvas_height];
+    }
+
+    /** Reverts every change since the last checkpoint and removes the checkpoint
+     * @return false if there was no checkpoint to return to
+     */
+    public boolean undo() {
+        materialize();
+        Map<Integer, int[][]> original_rows = undo_journal.poll();
+        if (original_rows == null) return false;
+        // The journal of the previous checkpoint continues
+        recorded_rows = undo_journal.isEmpty() ? null : new boolean[canvas_height];
+        if (recorded_rows != null) {
+            for (int row : undo_journal.peek().keySet()) recorded_rows[row] = true;
+        }
+        for (Map.Entry<Integer, int[][]> entry : original_rows.entrySet()) {
+            // The restored row is the state at the previous checkpoint as well, so it isn't recorded again.
+            // Earlier checkpoints or snapshots might still reference it, it has to stay shared
+            canvas[entry.getKey()] = entry.getValue();
+            shared_rows[entry.getKey()] = true;
+        }
+        return true;
+    }
+
+    /** Returns a row of the canvas that can be written, copying it first if it is shared. <br>
+     * The pending regions of the lazy mode are drawn into the row first. <br>
+     * Not thread safe: the copy replaces the row in the canvas and the original goes into the undo journal. Code that
+     * writes rows in parallel therefore takes all of them from here (or from writableRow) on the calling thread first
+     * and only hands the returned arrays to the other threads.
+     * @param row The index of the row in the canvas (0 = top row)
+     * @return the row
+     */
+    int[][] editableRow(int row) {
+        int[][] pixels = writableRow(row);
+        if (applied_regions != null && applied_regions[row] < lazy_regions.size()) {
+            for (int i = applied_regions[row]; i < lazy_regions.size(); i++) lazy_regions.get(i).draw(canvas_height - row, pixels);
+            applied_regions[row] = lazy_regions.size();
+        }
+        return pixels;
+    }
+
+    // The copy-on-write part of editableRow, without the lazy regions
+    private int[][] writableRow(int row) {
+        recordRow(row);
+        if (shared_rows[row]) {
+            canvas[row] = canvas[row].clone();
+            shared_rows[row] = false;
+        }
+        return canvas[row];
+    }
+
+    // Stores the original row in the journal of the latest checkpoint, if it wasn't stored already
+    private void recordRow(int row) {
+        if (recorded_rows != null && !recorded_rows[row]) {
+            undo_journal.peek().put(row, canvas[row]);
+            recorded_rows[row] = true;
+            shared_rows[row] = true;
+        }
+    }
+
+    /** Replaces the whole canvas (for example when a file is read), the undo journal is cleared
+     * @param content The new canvas as rows[pixel[]], top row first
+     */
+    void replaceCanvas(int[][][] content) {
+        this.canvas = content;
+        this.canvas_height = content.length;
+        this.canvas_width = content.length == 0 ? 0 : content[0].length;
+        this.shared_rows = new boolean[canvas_height];
+        undo_journal.clear();
+        recorded_rows = null;
+        // The pending regions of the lazy mode are replaced as well
+        lazy_regions.clear();
+        applied_regions = null;
+    }
+
     /** Validates the syntax of a color_provider
      * @param color The color_provider that should be validated
      * @throws IllegalArgumentException when the color_provider doesn't match criteria
@@ -78,8 +439,8 @@ public class Bitmap {
         }
 
         for (int color_information : color.color) {
-            if (color_information < 0 || color_information > 255) {
-                throw new IllegalArgumentException("at least one rgb value is too big");
+            if (color_information < 0 || color_information > max_value) {
+                throw new IllegalArgumentException(String.format("at least one rgb value is outside of 0 to %d", max_value));
             }
         }
 
@@ -90,7 +451,7 @@ public class Bitmap {
      * @param y coordinate of the addressed pixel
      * @param color_provider a object of type Color or Pattern that provides the color_provider
      * @throws IllegalArgumentException when the color_provider isn't a Pattern or a Color
-     * @throws Exceptions.PixelOutOfBoundsException when the accessed pixel is outside the canvas
+     * @throws Exceptions.PixelOutOfBoundsException when the accessed pixel is outside the canvas (pixel outside the clip are skipped)
      */
     private void changePixel(int x, int y, ColorProvider color_provider)  {
         if (x < 1 || x > canvas_width) {
@@ -98,11 +459,16 @@ public class Bitmap {
         } else if (y < 1 || y > canvas_height) {
             throw new Exceptions.PixelOutOfBoundsException("y is out of bounds");
         }
+        if (x < clip_min_x || x > clip_max_x || y < clip_min_y || y > clip_max_y) return;
 
         if (color_provider.getClass() == Color.class) {
-            canvas[canvas_height-y][x-1] = ((Color) color_provider).color;
+            editableRow(canvas_height-y)[x-1] = ((Color) color_provider).color;
+            metrics.pixelsWritten(1);
         } else if (color_provider.getClass() == Pattern.class) {
-            canvas[canvas_height-y][x-1] = ((Pattern) color_provider).run(x, y).color;
+            // The row is prepared first (lazy regions), then the pattern is evaluated, an opacity pattern reads the current pixel
+            int[][] pixels = editableRow(canvas_height-y);
+            pixels[x-1] = ((Pattern) color_provider).run(x, y).color;
+            metrics.pixelsWritten(1);
         } else {
             throw new IllegalArgumentException("How did you even get here? color_provider can be only be a Pattern or a Color");
         }
@@ -129,7 +495,57 @@ public class Bitmap {
         }
     }
 
-    /**
+    /** Restricts every following drawing operation to a rectangle, until {@link #popClip()} is called. <br>
+     * The rectangle is intersected with the current clip, so nested clips can only shrink it. The primitives
+     * intersect their area with the clip once before rasterizing, nothing outside of it is evaluated or written.
+     * @param x_p1 The x-coordinate of the first point
+     * @param y_p1 The y-coordinate of the first point
+     * @param x_p2 The x-coordinate of the second point
+     * @param y_p2 The y-coordinate of the second point
+     */
+    public void pushClip(int x_p1, int y_p1, int x_p2, int y_p2) {
+        clip_stack.push(new int[]{clip_min_x, clip_max_x, clip_min_y, clip_max_y});
+        clip_min_x = Math.max(clip_min_x, Math.min(x_p1, x_p2)); clip_max_x = Math.min(clip_max_x, Math.max(x_p1, x_p2));
+        clip_min_y = Math.max(clip_min_y, Math.min(y_p1, y_p2)); clip_max_y = Math.min(clip_max_y, Math.max(y_p1, y_p2));
+    }
+
+    /** Restores the clip from before the last {@link #pushClip(int, int, int, int)}
+     * @return false if there was no clip to remove
+     */
+    public boolean popClip() {
+        int[] previous = clip_stack.poll();
+        if (previous == null) return false;
+        clip_min_x = previous[0]; clip_max_x = previous[1];
+        clip_min_y = previous[2]; clip_max_y = previous[3];
+        return true;
+    }
+
+    // The visible part of the canvas: the clip intersected with the canvas (may be empty)
+    int clipLeft() { return Math.max(clip_min_x, 1); }
+    int clipRight() { return Math.min(clip_max_x, canvas_width); }
+    int clipBottom() { return Math.max(clip_min_y, 1); }
+    int clipTop() { return Math.min(clip_max_y, canvas_height); }
+
+    /** Rejects a shape that leaves the canvas, if the bitmap is {@link #strict}
+     * @throws Exceptions.PixelOutOfBoundsException if the bitmap is strict and the area isn't inside the canvas
+     */
+    private void checkInside(int min_x, int max_x, int min_y, int max_y) {
+        if (strict) requireInside(min_x, max_x, min_y, max_y);
+    }
+
+    /** Rejects a shape that leaves the canvas, an empty area is always inside
+     * @throws Exceptions.PixelOutOfBoundsException if the area isn't inside the canvas
+     */
+    private void requireInside(int min_x, int max_x, int min_y, int max_y) {
+        if (min_x > max_x || min_y > max_y) return;
+        if (min_x < 1 || max_x > canvas_width) {
+            throw new Exceptions.PixelOutOfBoundsException(String.format("x from %d to %d is out of bounds", min_x, max_x));
+        } else if (min_y < 1 || max_y > canvas_height) {
+            throw new Exceptions.PixelOutOfBoundsException(String.format("y from %d to %d is out of bounds", min_y, max_y));
+        }
+    }
+
+    /** Fills a rectangle, parts outside the canvas or the clip are skipped (or rejected if the bitmap is {@link #strict})
      * @param x_p1 The x-coordinate of the first point
      * @param y_p1 The y-coordinate of the first point
      * @param x_p2 The x-coordinate of the second point
@@ -137,12 +553,20 @@ public class Bitmap {
      * @param color_provider The color_provider provider, has to be of type Color or Pattern
      * @param outline The outline object
      * @see Outline#Outline(boolean, int, ColorProvider)
+     * @see #pushClip(int, int, int, int)
      * @throws IllegalArgumentException if the color_provider isn't of type Color or pattern
+     * @throws Exceptions.PixelOutOfBoundsException if the bitmap is strict and the area or its outline leave the canvas
      */
     public void fillArea(int x_p1, int y_p1, int x_p2, int y_p2, ColorProvider color_provider, Outline outline) {
         int min_x, max_x, min_y, max_y;
         min_x = Math.min(x_p1, x_p2); max_x = Math.max(x_p1, x_p2);
         min_y = Math.min(y_p1, y_p2); max_y = Math.max(y_p1, y_p2);
+        checkType(color_provider);
+        if (outline.active) {
+            checkInside(min_x - outline.thickness, max_x + outline.thickness, min_y - outline.thickness, max_y + outline.thickness);
+        } else {
+            checkInside(min_x, max_x, min_y, max_y);
+        }
 
         if (color_provider.getClass() == Pattern.class) {
             setAutoPattern(min_x, max_x, min_y, max_y, color_provider, false);
@@ -152,10 +576,74 @@ public class Bitmap {
             border(min_x, min_y, max_x, max_y, outline.thickness, outline.color_provider);
         }
 
-        for (int y = min_y; y <= max_y; y++) {
-            for (int x = min_x; x <= max_x; x++) {
-                changePixel(x, y, color_provider);
+        // The area is intersected with the clip once, only the visible part is rasterized
+        int first_x = Math.max(min_x, clipLeft()), last_x = Math.min(max_x, clipRight());
+        int first_y = Math.max(min_y, clipBottom()), last_y = Math.min(max_y, clipTop());
+        if (first_x > last_x || first_y > last_y) return;
+        int length = last_x - first_x + 1;
+        if (lazy && recordLazily(first_x, last_x, first_y, last_y, color_provider)) return;
+
+        // Periodic color providers are evaluated once per tile and stamped
+        int[][][] tile = tileOf(color_provider, (long) length * (last_y - first_y + 1));
+        if (tile != null) {
+            for (int y = first_y; y <= last_y; y++) {
+                stampTile(tile[(y - 1) % tile.length], editableRow(canvas_height - y), first_x - 1, length);
+                metrics.spanFilled(length);
             }
+            return;
+        }
+
+        Pattern pattern = (Pattern) color_provider;
+        for (int y = first_y; y <= last_y; y++) {
+            int[][] pixels = editableRow(canvas_height - y);
+            // The pattern is evaluated before the pixel is replaced, an opacity pattern reads the current pixel
+            for (int x = first_x; x <= last_x; x++) pixels[x - 1] = pattern.run(x, y).color;
+            metrics.pixelsWritten(length);
+        }
+    }
+
+    /** Returns the pre-rendered tile of a periodic color provider, from the cache or by evaluating it
+     * @param color_provider The color provider
+     * @param area The amount of pixel that will be filled
+     * @return the tile as rows[pixel[]], the pixel of (x, y) is {@code tile[(y-1) % height][(x-1) % width]},
+     *         null if the color provider isn't periodic or the tile wouldn't pay off
+     */
+    private int[][][] tileOf(ColorProvider color_provider, long area) {
+        if (color_provider.getClass() == Color.class) return new int[][][]{{((Color) color_provider).color}};
+        Pattern pattern = (Pattern) color_provider;
+        int[] period = pattern.getPeriod();
+        if (period == null || (long) period[0] * period[1] > MAX_TILE_AREA || (long) period[0] * period[1] * 2 > area) return null;
+
+        // The tile depends on the structure, the settings and the colors of the whole tree
+        List<Object> key = new ArrayList<>();
+        pattern.appendTileKey(key);
+        int[][][] tile = pattern_tiles.get(key);
+        if (tile == null) {
+            tile = new int[period[1]][period[0]][];
+            for (int row = 0; row < period[1]; row++) {
+                for (int column = 0; column < period[0]; column++) tile[row][column] = pattern.run(column + 1, row + 1).color;
+            }
+            pattern_tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    // Fills the pixel [start, start + length) of the row with the periodic tile row
+    private static void stampTile(int[][] tile_row, int[][] row, int start, int length) {
+        int offset = start % tile_row.length;
+        int first = Math.min(tile_row.length - offset, length);
+        System.arraycopy(tile_row, offset, row, start, first);
+        int filled = first;
+        if (filled < length) {
+            int copied = Math.min(tile_row.length, length - filled);
+            System.arraycopy(tile_row, 0, row, start + filled, copied);
+            filled += copied;
+        }
+        // Everything after the first part is aligned to the tile, the already stamped periods are doubled
+        while (filled < length) {
+            int copied = Math.min(filled - first, length - filled);
+            System.arraycopy(row, start + first, row, start + filled, copied);
+            filled += copied;
         }
     }
 
@@ -188,19 +676,22 @@ public class Bitmap {
         fillWin();
     }
 
-    /** Creates a border in a specified area (outwards facing)
+    /** Creates a border in a specified area (outwards facing), parts outside the canvas or the clip are skipped
      * @param x_p1 The x-coordinate of the first point
      * @param y_p1 The y-coordinate of the first point
      * @param x_p2 The x-coordinate of the second point
      * @param y_p2 The y-coordinate of the second point
      * @param thickness The thickness of the border (outwards)
      * @param color_provider The color_provider provider, has to be either Color or Pattern
+     * @throws Exceptions.PixelOutOfBoundsException if the bitmap is strict and the border leaves the canvas
      */
     public void border (int x_p1, int y_p1, int x_p2, int y_p2, int thickness, ColorProvider color_provider) {
 
         int min_x, max_x, min_y, max_y;
         min_x = Math.min(x_p1, x_p2); max_x = Math.max(x_p1, x_p2);
         min_y = Math.min(y_p1, y_p2); max_y = Math.max(y_p1, y_p2);
+        if (strict && thickness < 0) throw new IllegalArgumentException("the thickness can't be negative");
+        checkInside(min_x - thickness, max_x + thickness, min_y - thickness, max_y + thickness);
         Pattern[] lockedPatterns =  setAutoPattern(min_x, max_x, min_y, max_y, color_provider, true);
         // X-Axis
         fillArea(min_x-thickness, min_y, max_x+thickness,min_y-thickness, color_provider);
@@ -217,12 +708,14 @@ public class Bitmap {
      * @throws IllegalArgumentException if the color_provider provider is not of type Color or Pattern
      */
     public void fillWin(ColorProvider color_provider) {
-        if (color_provider.getClass() == Color.class) {
-            validateColor((Color) color_provider);
-            for (int[][] row : canvas) {
-                Arrays.fill(row, ((Color) color_provider).color);
+        boolean clipped = clipLeft() > 1 || clipRight() < canvas_width || clipBottom() > 1 || clipTop() < canvas_height;
+        if (color_provider.getClass() == Color.class) validateColor((Color) color_provider);
+        if (color_provider.getClass() == Color.class && !clipped && !lazy) {
+            for (int row = 0; row < canvas_height; row++) {
+                Arrays.fill(editableRow(row), ((Color) color_provider).color);
+                metrics.spanFilled(canvas_width);
             }
-        } else if (color_provider.getClass() == Pattern.class) {
+        } else if (color_provider.getClass() == Color.class || color_provider.getClass() == Pattern.class) {
             fillArea(1, 1, canvas_width, canvas_height, color_provider);
         } else {
             throw new IllegalArgumentException("color_provider must be of class Color or Pattern");
@@ -230,6 +723,304 @@ public class Bitmap {
 
     }
 
+    /** Fills the connected region of similar color around a pixel (4-neighbourhood) <br>
+     * Scanline flood fill with an explicit stack and a visited bitset, so regions of any size can't overflow the
+     * call stack. The region is found first and filled afterwards: auto patterns are set to the bounding box of the
+     * region and every pixel is compared with the colors before the fill. The region ends at the clip.
+     * @param x The x-coordinate of the start pixel
+     * @param y The y-coordinate of the start pixel
+     * @param color_provider The color_provider provider, has to be of type Color or Pattern
+     * @param tolerance How much every channel of a pixel may differ from the start pixel to belong to the region | d = 0
+     * @return the amount of filled pixel, 0 if the start pixel is outside the clip
+     * @throws Exceptions.PixelOutOfBoundsException when the start pixel is outside the canvas
+     * @throws IllegalArgumentException if the tolerance is negative or the color_provider isn't of type Color or Pattern
+     */
+    public int floodFill(int x, int y, ColorProvider color_provider, int tolerance) {
+        if (x < 1 || x > canvas_width) {
+            throw new Exceptions.PixelOutOfBoundsException("x is out of bounds");
+        } else if (y < 1 || y > canvas_height) {
+            throw new Exceptions.PixelOutOfBoundsException("y is out of bounds");
+        }
+        if (tolerance < 0) throw new IllegalArgumentException("the tolerance can't be negative");
+        checkType(color_provider);
+        if (color_provider.getClass() == Color.class) validateColor((Color) color_provider);
+        if (x < clipLeft() || x > clipRight() || y < clipBottom() || y > clipTop()) return 0;
+        materialize();
+        // The visible columns and rows of the canvas
+        int first_column = clipLeft() - 1, last_column = clipRight() - 1;
+        int first_row = canvas_height - clipTop(), last_row = canvas_height - clipBottom();
+
+        // Finding the region, canvas indices (row 0 = top row), bit row * canvas_width + column
+        int[] seed = canvas[canvas_height - y][x - 1];
+        BitSet region = new BitSet(canvas_width * canvas_height);
+        int[] stack = new int[64]; // Pairs of column and row
+        int size = 0;
+        stack[size++] = x - 1; stack[size++] = canvas_height - y;
+        int min_column = x - 1, max_column = x - 1, min_row = canvas_height - y, max_row = canvas_height - y;
+        int filled = 0;
+        while (size > 0) {
+            int row = stack[--size], column = stack[--size];
+            if (region.get(row * canvas_width + column)) continue;
+            int[][] pixels = canvas[row];
+            // Extending the span to both sides
+            int left = column, right = column;
+            while (left > first_column && !region.get(row * canvas_width + left - 1) && similar(pixels[left - 1], seed, tolerance)) left--;
+            while (right < last_column && !region.get(row * canvas_width + right + 1) && similar(pixels[right + 1], seed, tolerance)) right++;
+            region.set(row * canvas_width + left, row * canvas_width + right + 1);
+            filled += right - left + 1;
+            min_column = Math.min(min_column, left); max_column = Math.max(max_column, right);
+            min_row = Math.min(min_row, row); max_row = Math.max(max_row, row);
+            // One seed per matching run in the rows above and below
+            for (int next_row = row - 1; next_row <= row + 1; next_row += 2) {
+                if (next_row < first_row || next_row > last_row) continue;
+                int[][] next_pixels = canvas[next_row];
+                boolean in_run = false;
+                for (int next_column = left; next_column <= right; next_column++) {
+                    boolean matches = !region.get(next_row * canvas_width + next_column) && similar(next_pixels[next_column], seed, tolerance);
+                    if (matches && !in_run) {
+                        if (size + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                        stack[size++] = next_column; stack[size++] = next_row;
+                    }
+                    in_run = matches;
+                }
+            }
+        }
+
+        // Filling the region span by span
+        Pattern[] locked_patterns = new Pattern[0];
+        if (color_provider.getClass() == Pattern.class) {
+            locked_patterns = setAutoPattern(min_column + 1, max_column + 1, canvas_height - max_row, canvas_height - min_row, color_provider, true);
+        }
+        int[][][] tile = color_provider.getClass() == Pattern.class ? tileOf(color_provider, filled) : null;
+        for (int row = min_row; row <= max_row; row++) {
+            int row_start = row * canvas_width;
+            int start = region.nextSetBit(row_start + min_column);
+            if (start < 0 || start > row_start + max_column) continue;
+            int[][] pixels = editableRow(row);
+            while (start >= 0 && start <= row_start + max_column) {
+                int end = Math.min(region.nextClearBit(start), row_start + max_column + 1); // The region may continue in the next row
+                if (color_provider.getClass() == Color.class) {
+                    Arrays.fill(pixels, start - row_start, end - row_start, ((Color) color_provider).color);
+                } else if (tile != null) {
+                    stampTile(tile[(canvas_height - row - 1) % tile.length], pixels, start - row_start, end - start);
+                } else {
+                    for (int column = start - row_start; column < end - row_start; column++) {
+                        pixels[column] = ((Pattern) color_provider).run(column + 1, canvas_height - row).color;
+                    }
+                }
+                metrics.spanFilled(end - start);
+                start = region.nextSetBit(end);
+            }
+        }
+        unlockAutoPattern(locked_patterns);
+        return filled;
+    }
+
+    /**@see #floodFill(int, int, ColorProvider, int) **/
+    public int floodFill(int x, int y, ColorProvider color_provider) { return floodFill(x, y, color_provider, 0); }
+
+    // Whether every channel of the pixel differs by at most the tolerance from the reference
+    private static boolean similar(int[] pixel, int[] reference, int tolerance) {
+        return pixel == reference || Math.abs(pixel[0] - reference[0]) <= tolerance
+                && Math.abs(pixel[1] - reference[1]) <= tolerance && Math.abs(pixel[2] - reference[2]) <= tolerance;
+    }
+
+    /** Draws a text with the font of the bitmap, parts outside the canvas or the clip are skipped <br>
+     * Every glyph is drawn as spans of its pre-rasterized rows, lines are separated by '\n'. Auto patterns are set
+     * to the box of the whole text.
+     * @param x The x-coordinate of the left border of the text
+     * @param y The y-coordinate of the bottom border of the text (the bottom of the last line)
+     * @param text The text
+     * @param color_provider The color_provider provider, has to be of type Color or Pattern
+     * @param scale Every pixel of a glyph becomes scale x scale pixel | d = 1
+     * @throws IllegalArgumentException if the scale is smaller than 1 or the color_provider isn't of type Color or Pattern
+     * @throws Exceptions.PixelOutOfBoundsException if the bitmap is strict and the text leaves the canvas
+     * @see #font
+     * @see BitmapFont
+     */
+    public void drawText(int x, int y, String text, ColorProvider color_provider, int scale) {
+        if (scale < 1) throw new IllegalArgumentException("the scale must be at least 1");
+        checkType(color_provider);
+        if (color_provider.getClass() == Color.class) validateColor((Color) color_provider);
+        BitmapFont font = this.font;
+        int[] size = font.measure(text, scale);
+        int top = y + size[1] - 1; // The y-coordinate of the top row of the first line
+        checkInside(x, x + size[0] - 1, y, top);
+        int clip_left = clipLeft(), clip_right = clipRight(), clip_bottom = clipBottom(), clip_top = clipTop();
+        if (x > clip_right || x + size[0] - 1 < clip_left || y > clip_top || top < clip_bottom) return;
+
+        Pattern[] locked_patterns = new Pattern[0];
+        if (color_provider.getClass() == Pattern.class) {
+            locked_patterns = setAutoPattern(x, x + size[0] - 1, y, top, color_provider, true);
+        }
+        int column = 0, line = 0;
+        for (int i = 0; i < text.length(); ) {
+            int code_point = text.codePointAt(i);
+            i += Character.charCount(code_point);
+            if (code_point == '\n') {
+                line++;
+                column = 0;
+                continue;
+            }
+            BitmapFont.Glyph glyph = font.glyph(code_point);
+            int glyph_x = x + column++ * font.cell_width * scale;
+            int glyph_top = top - line * font.cell_height * scale;
+            if (glyph == null || glyph_x > clip_right || glyph_x + font.cell_width * scale - 1 < clip_left) continue;
+            for (int row = 0; row < glyph.spans.length; row++) {
+                int[] spans = glyph.spans[row];
+                if (spans.length == 0) continue;
+                for (int repeat = 0; repeat < scale; repeat++) {
+                    int pixel_y = glyph_top - row * scale - repeat;
+                    if (pixel_y < clip_bottom || pixel_y > clip_top) continue;
+                    int[][] pixels = editableRow(canvas_height - pixel_y);
+                    for (int span = 0; span < spans.length; span += 2) {
+                        int first = Math.max(glyph_x + spans[span] * scale, clip_left);
+                        int last = Math.min(glyph_x + (spans[span] + spans[span + 1]) * scale - 1, clip_right);
+                        if (first > last) continue;
+                        if (color_provider.getClass() == Color.class) {
+                            Arrays.fill(pixels, first - 1, last, ((Color) color_provider).color);
+                        } else {
+                            for (int pixel_x = first; pixel_x <= last; pixel_x++) pixels[pixel_x - 1] = ((Pattern) color_provider).run(pixel_x, pixel_y).color;
+                        }
+                        metrics.spanFilled(last - first + 1);
+                    }
+                }
+            }
+        }
+        unlockAutoPattern(locked_patterns);
+    }
+
+    /**@see #drawText(int, int, String, ColorProvider, int) **/
+    public void drawText(int x, int y, String text, ColorProvider color_provider) { drawText(x, y, text, color_provider, 1); }
+
+    /** Writes a whole row from packed colors. Parts outside the canvas or the clip are skipped.
+     * @param y The y-coordinate of the row
+     * @param packed The colors as 0xRRGGBB (the highest byte is ignored)
+     * @param offset The index of the color of the first pixel (x = 1) in packed
+     */
+    public void setRow(int y, int[] packed, int offset) {
+        setRow(1, y, packed, offset, canvas_width);
+    }
+
+    /** Writes a part of a row from packed colors. Parts outside the canvas or the clip are skipped.
+     * @param x The x-coordinate of the first pixel
+     * @param y The y-coordinate of the row
+     * @param packed The colors as 0xRRGGBB (the highest byte is ignored)
+     * @param offset The index of the color of the first pixel in packed
+     * @param length The amount of pixel
+     */
+    public void setRow(int x, int y, int[] packed, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > packed.length) throw new IllegalArgumentException("packed doesn't contain length colors after offset");
+        int first = Math.max(clipLeft(), x), last = Math.min(clipRight(), x + length - 1);
+        if (y < clipBottom() || y > clipTop() || first > last) return;
+        unpack(packed, offset + first - x, editableRow(canvas_height - y), first - 1, last - first + 1);
+        metrics.spanFilled(last - first + 1);
+    }
+
+    /** Writes a region from packed colors. Parts outside the canvas or the clip are skipped.
+     * @param x The x-coordinate of the left column of the region
+     * @param y The y-coordinate of the bottom row of the region
+     * @param width The width of the region
+     * @param height The height of the region
+     * @param packed width * height colors as 0xRRGGBB, row by row starting with the top row (like files and the canvas).
+     *               They are read from the current position, which is advanced past the region.
+     */
+    public void setRegion(int x, int y, int width, int height, IntBuffer packed) {
+        if (width < 0 || height < 0 || (long) width * height > packed.remaining()) throw new IllegalArgumentException("packed doesn't contain width * height colors");
+        int start = packed.position();
+        int first_x = Math.max(clipLeft(), x), last_x = Math.min(clipRight(), x + width - 1);
+        int first_y = Math.max(clipBottom(), y), last_y = Math.min(clipTop(), y + height - 1);
+        if (first_x <= last_x) {
+            int[] colors = new int[last_x - first_x + 1];
+            for (int row_y = last_y; row_y >= first_y; row_y--) {
+                // The buffer starts with the top row of the region
+                packed.get(start + (y + height - 1 - row_y) * width + first_x - x, colors, 0, colors.length);
+                unpack(colors, 0, editableRow(canvas_height - row_y), first_x - 1, colors.length);
+                metrics.spanFilled(colors.length);
+            }
+        }
+        packed.position(start + width * height);
+    }
+
+    /** Copies a region of another bitmap (or of this one) onto this bitmap. <br>
+     * The pixel are shared, not copied (they are never modified in place). Parts outside of either canvas or outside
+     * the clip of this bitmap are skipped, overlapping regions of the same bitmap are copied as if the source was copied first.
+     * @param source The bitmap the region is copied from
+     * @param src_x The x-coordinate of the left column of the region in the source
+     * @param src_y The y-coordinate of the bottom row of the region in the source
+     * @param width The width of the region
+     * @param height The height of the region
+     * @param dst_x The x-coordinate of the left column of the target
+     * @param dst_y The y-coordinate of the bottom row of the target
+     */
+    public void blit(Bitmap source, int src_x, int src_y, int width, int height, int dst_x, int dst_y) {
+        // The columns and rows of the region (relative to its lower left corner) that are inside both canvases and the clip
+        int first_column = Math.max(0, Math.max(1 - src_x, clipLeft() - dst_x));
+        int last_column = Math.min(width - 1, Math.min(source.canvas_width - src_x, clipRight() - dst_x));
+        int first_row = Math.max(0, Math.max(1 - src_y, clipBottom() - dst_y));
+        int last_row = Math.min(height - 1, Math.min(source.canvas_height - src_y, clipTop() - dst_y));
+        if (first_column > last_column || first_row > last_row) return;
+        source.materialize();
+
+        int length = last_column - first_column + 1;
+        // Moving down, the lower rows are copied first (and vice versa), so no source row is overwritten before it is read
+        boolean upwards = source != this || src_y >= dst_y;
+        for (int i = first_row; i <= last_row; i++) {
+            int row = upwards ? i : last_row - (i - first_row);
+            int[][] target = editableRow(canvas_height - (dst_y + row));
+            int[][] origin = source.canvas[source.canvas_height - (src_y + row)];
+            // arraycopy handles overlapping ranges of the same row
+            System.arraycopy(origin, src_x + first_column - 1, target, dst_x + first_column - 1, length);
+            metrics.spanFilled(length);
+        }
+    }
+
+    /** Copies a region of this bitmap to another position, the regions may overlap
+     * @see #blit(Bitmap, int, int, int, int, int, int)
+     */
+    public void copyRegion(int src_x, int src_y, int width, int height, int dst_x, int dst_y) {
+        blit(this, src_x, src_y, width, height, dst_x, dst_y);
+    }
+
+    /** Resizes the canvas, the undo journal is cleared (like reading a file)
+     * @param width The new width of the canvas
+     * @param height The new height of the canvas
+     * @param method The resampling method
+     * @see Resampler
+     */
+    public void resize(int width, int height, Resampler.Method method) {
+        replaceCanvas(Resampler.resize(getCanvas(), width, height, method, max_value));
+    }
+
+    /** Creates a resized copy of the bitmap, this bitmap isn't changed
+     * @param width The width of the copy
+     * @param height The height of the copy
+     * @param method The resampling method
+     * @return a new bitmap with the same filename and comments
+     * @see Resampler
+     */
+    public Bitmap resized(int width, int height, Resampler.Method method) {
+        Bitmap copy = new Bitmap(width, height, filename, false);
+        copy.comments = new ArrayList<>(comments);
+        copy.max_value = max_value;
+        copy.replaceCanvas(Resampler.resize(getCanvas(), width, height, method, max_value));
+        return copy;
+    }
+
+    // Converts packed colors into pixel, consecutive equal colors share one pixel array
+    private static void unpack(int[] packed, int offset, int[][] row, int start, int length) {
+        int[] pixel = null;
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            int color = packed[offset + i] & 0xffffff;
+            if (pixel == null || color != last) {
+                pixel = new int[]{color >>> 16, (color >>> 8) & 0xff, color & 0xff};
+                last = color;
+            }
+            row[start + i] = pixel;
+        }
+    }
+
     /** Sets the from and to on pattern that are labeled as auto recursively
      * @param from_x From when the pattern is horizontal
      * @param to_x To when the pattern is horizontal
@@ -265,6 +1056,35 @@ public class Bitmap {
         return Arrays.copyOf(temp, temp.length, Pattern[].class);
     }
 
+    /** The half widths of the rows of a circle, the same pixel as Shapes.circle() <br>
+     * Index k is the row pos_y + radius - 1 - k, -1 if the row is empty
+     */
+    private static int[] circleStamp(int radius) {
+        int[] half_widths = new int[radius * 2];
+        for (int k = 0; k < radius * 2; k++) half_widths[k] = circleHalfWidth(radius, radius - 1 - k);
+        return half_widths;
+    }
+
+    /** The half width of the row of a circle at a vertical distance from its center
+     * @return the largest dx with dx^2 + dy^2 < radius^2, -1 if the row is empty
+     */
+    private static int circleHalfWidth(int radius, int dy) {
+        // The largest dx is the integer root of radius^2 - dy^2 - 1
+        long limit = (long) radius * radius - (long) dy * dy - 1;
+        if (limit < 0) return -1;
+        long root = (long) Math.sqrt(limit);
+        while (root * root > limit) root--;
+        while ((root + 1) * (root + 1) <= limit) root++;
+        return (int) root;
+    }
+
+    // The least common multiple of two periods (capped at Integer.MAX_VALUE)
+    private static int lcm(int a, int b) {
+        int gcd_a = a, gcd_b = b;
+        while (gcd_b != 0) { int temp = gcd_a % gcd_b; gcd_a = gcd_b; gcd_b = temp; }
+        return (int) Math.min((long) a / gcd_a * b, Integer.MAX_VALUE);
+    }
+
     /** Can be used to unlock patterns previously locked by the setAutoPattern
      * @param patterns an array of patterns that should be unlocked
      */
@@ -274,116 +1094,209 @@ public class Bitmap {
         }
     }
 
-    /** Writes the bitmap to a file
+    /** Writes the bitmap to a file <br>
+     *  The content is written to a temporary file in the same directory first, which is then moved onto the target
+     *  in one atomic step. Image viewers therefore never see a half-written file. <br>
      *  d = default
      * @param filename The name of the file to which the bitmap should be written | d = Bitmap.ppm
      * @param custom_win A three dimensional array containing custom pixel information | d = canvas
      * @param report_path | d false
      * @throws IllegalArgumentException if the specified file is not in the ppm format, or if the write operation wasn't successful
+     * @see #render_max_retries
      */
     public void render(String filename, int[][][] custom_win, boolean report_path) {
-        String format;
-        String full_filepath =  filename.substring(0, 2).matches(".:") ? filename : System.getProperty("user.dir") + "/" + filename;
-        try {
-            format = filename.split("\\.")[1];
-        } catch (ArrayIndexOutOfBoundsException e) {
-            format = "ppm";
-            full_filepath = System.getProperty("user.dir") + "/" + filename + ".ppm";;
+        Metrics.Measurement measurement = metrics.startRender();
+        // Building the file content before touching the file system, so an unsupported format leaves no trace
+        // The canvas itself is passed on as rows, so pending regions of the lazy mode are evaluated while encoding
+        ContentWriter content = encode(formatOf(filename), filename, custom_win == canvas ? canvasRows(false) : PPMEncoder.RowSource.of(custom_win));
+        Path target = targetOf(filename, report_path);
+        long bytes = publish(target, content);
+        metrics.renderFinished(measurement, target, bytes);
+    }
+
+    /** Renders a snapshot of the canvas on a background thread. <br>
+     * The snapshot is taken immediately, drawing can continue while the file is written.
+     * The renders of one bitmap are written one after another in the order they were requested.
+     * @param filename The name of the file to which the bitmap should be written
+     * @return a future that completes once the file was replaced (or completes exceptionally if that failed)
+     * @see #render(String, int[][][], boolean)
+     * @see #snapshot()
+     */
+    public CompletableFuture<Void> renderAsync(String filename) {
+        Metrics.Measurement measurement = metrics.startRender();
+        ContentWriter content = encode(formatOf(filename), filename, canvasRows(true));
+        Path target = targetOf(filename, false);
+        return CompletableFuture.runAsync(() -> {
+            long bytes = publish(target, content);
+            metrics.renderFinished(measurement, target, bytes);
+        }, renderExecutor());
+    }
+
+    /**@see #renderAsync(String) */
+    public CompletableFuture<Void> renderAsync() { return renderAsync(filename); }
+
+    private synchronized ExecutorService renderExecutor() {
+        if (render_executor == null) {
+            render_executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bitmap-render");
+                thread.setDaemon(true); // Pending renders shouldn't keep the program alive
+                return thread;
+            });
         }
+        return render_executor;
+    }
 
+    // The format is taken from the file extension, files without extension are .ppm files
+    private String formatOf(String filename) {
         try {
-            // Creating a new File object
-            File bitmap = new File(full_filepath);
-
-            // Checking if the file exists
-            if (!bitmap.exists()) {
-                // Creating a new file
-                if (bitmap.createNewFile()) {
-                    System.out.println("created new file");
-                }
-            }
-            // Creating a new file writer
-            FileWriter render_obj = new FileWriter(full_filepath);
-            // Better way to do build a string in a for loop
-            StringBuilder converted_win = new StringBuilder();
-
+            return filename.split("\\.")[1];
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return "ppm";
+        }
+    }
 
+    // The absolute path of the file the bitmap is rendered to
+    private Path targetOf(String filename, boolean report_path) {
+        String full_filepath =  filename.substring(0, 2).matches(".:") ? filename : System.getProperty("user.dir") + "/" + filename;
+        if (filename.split("\\.").length < 2) {
+            full_filepath = System.getProperty("user.dir") + "/" + filename + ".ppm";
+        }
 
-            // Checking whether the file in the right format
-            if (format.equals("ppm")) {
-                // Adding the header
-                converted_win.append(String.format("P3\n%s\n%s %s\n255\n", String.join("\n#", this.comments), canvas_width, canvas_height));
+        Path target = Paths.get(full_filepath).toAbsolutePath();
+        if (!Files.exists(target)) {
+            System.out.println("created new file");
+        }
+        if (report_path) { // Output the full filepath
+            System.out.println("Writing object to: " + full_filepath);
+        }
+        return target;
+    }
 
-                // Building the file content
-                for (int[][] row : custom_win) {
-                    for (int[] pixel : row) {
-                        for (int color_information : pixel) {
-                            converted_win.append(color_information).append(" ");
-                        }
-                    }
-                    converted_win.append("\n");
-                }
-            } else if (format.equals("pbm")) {
-                // Adding the header
-                converted_win.append(String.format("P1\n#%s\n%s %s\n", filename, canvas_width, canvas_height));
-
-                // Building the file content
-                for (int[][] row : custom_win) {
-                    for (int[] pixel : row) {
-                        int sum = 0;
-                        for (int color_information : pixel) {
-                            sum += color_information;
-                        }
-                        converted_win.append(sum > 255*3 / 2 ? 0 : 1).append(" ");
-                    }
-                    converted_win.append("\n");
+    /** Replaces the target with the content, retrying with a growing delay while the file is locked
+     * @return the size of the written file in bytes
+     * @throws IllegalArgumentException if the file couldn't be written after {@link #render_max_retries} retries,
+     *  or right away if waiting can't help (missing directory, read-only file system, ...)
+     */
+    private long publish(Path target, ContentWriter content) {
+        // When the current image viewer reloads the file, it is not accessible to Java.
+        // Therefore waiting a small (growing) amount of time can ensure cleared file locks.
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return writeAtomically(target, content);
+            } catch (IOException e) {
+                if (attempt >= render_max_retries || !isLocked(target, e)) {
+                    throw new IllegalArgumentException("Error: couldn't write to file.", e);
                 }
-            } else if (format.equals("pgm")) {
-                // Adding the header
-                converted_win.append(String.format("P2\n#%s\n%s %s\n256\n", filename, canvas_width, canvas_height));
-
-                // Building the file content
-                for (int[][] row : custom_win) {
-                    for (int[] pixel : row) {
-                        int sum = 0;
-                        for (int color_information : pixel) {
-                            sum += color_information;
-                        }
-                        converted_win.append(sum/3).append(" ");
-                    }
-                    converted_win.append("\n");
+                metrics.renderRetried();
+                try {
+                    Thread.sleep(Math.min((long) render_backoff_ms << attempt, 1000));
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalArgumentException("Error: interrupted while waiting for the file to become writable.", e);
                 }
             }
-            else {
-                render_obj.close();
-                throw new IllegalArgumentException(String.format("file format \"%s\" is not supported", format));
-            }
+        }
+    }
 
+    /** Whether writing failed because another program holds the file, which waiting can resolve. <br>
+     * Locks and sharing violations surface as an AccessDeniedException or a plain FileSystemException. Its subclasses
+     * (NoSuchFileException, NotDirectoryException, ...) and a read-only file system won't change by waiting.
+     */
+    private static boolean isLocked(Path target, IOException e) {
+        if (!(e instanceof AccessDeniedException) && e.getClass() != FileSystemException.class) return false;
+        try {
+            return !Files.getFileStore(target.getParent()).isReadOnly();
+        } catch (IOException storeException) {
+            return false;
+        }
+    }
 
+    /** Writes the content of a file to a channel */
+    private interface ContentWriter {
+        void writeTo(FileChannel channel) throws IOException;
+    }
 
-            if (report_path) { // Output the full filepath
-                System.out.println("Writing object to: " + full_filepath);
-            }
-            // Write the build string to the file
-            render_obj.write(converted_win.toString());
-            // Close the file
-            render_obj.close();
+    /** Converts the pixel information into the content of a file
+     * @param format The format of the file (ppm, pbm, pgm or qoi)
+     * @param filename The name of the file, used in the header comment of pbm and pgm files
+     * @param custom_win Provides the pixel information row by row
+     * @return a writer that writes the encoded file content
+     * @throws IllegalArgumentException if the format is not supported
+     * @see PPMEncoder
+     */
+    private ContentWriter encode(String format, String filename, PPMEncoder.RowSource custom_win) {
+        // Taken now, the content might be written later on another thread
+        PPMEncoder.Dither dither = this.dither;
+        int max_value = this.max_value;
+        boolean binary = this.binary;
+        int height = custom_win.height();
+        int width = custom_win.width();
+        // Checking whether the file in the right format
+        switch (format) {
+            case "ppm":
+                String ppm_header = String.format("%s\n%s\n%s %s\n%s\n", binary ? "P6" : "P3", String.join("\n#", this.comments), width, height, max_value);
+                if (binary) return channel -> PPMEncoder.writeBinary(channel, ppm_header, custom_win, PPMEncoder.Mode.RGB, max_value);
+                return channel -> PPMEncoder.write(channel, ppm_header, custom_win, PPMEncoder.Mode.RGB, PPMEncoder.Dither.NONE, max_value);
+            case "pbm":
+                String pbm_header = String.format("P1\n#%s\n%s %s\n", filename, width, height);
+                return channel -> PPMEncoder.write(channel, pbm_header, custom_win, PPMEncoder.Mode.BLACK_WHITE, dither, max_value);
+            case "pgm":
+                String pgm_header = String.format("%s\n#%s\n%s %s\n%s\n", binary ? "P5" : "P2", filename, width, height, max_value);
+                if (binary) return channel -> PPMEncoder.writeBinary(channel, pgm_header, custom_win, PPMEncoder.Mode.GREY, max_value);
+                return channel -> PPMEncoder.write(channel, pgm_header, custom_win, PPMEncoder.Mode.GREY, dither, max_value);
+            case "qoi":
+                if (max_value != 255) throw new IllegalArgumentException("qoi files only support 8 bit colors (max_value 255)");
+                // Compressed while streaming
+                return channel -> {
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+                    QOI.Encoder encoder = new QOI.Encoder(out, width, height);
+                    for (int row = 0; row < height; row++) encoder.writeRow(custom_win.rows(row, row + 1)[0]);
+                    encoder.finish();
+                    out.flush();
+                };
+            default:
+                throw new IllegalArgumentException(String.format("file format \"%s\" is not supported", format));
+        }
+    }
 
-        } catch (FileNotFoundException e) {
-            // When the current image viewer reloads the file, it is not accessible to Java.
-            // Therefore waiting a small amount of time can ensure cleared file locks.
-            // Might also result in a endless loop ¯\_(ツ)_/¯
+    /** Writes the content into a temporary file next to the target and moves it onto the target afterwards
+     * @param target The file that should be replaced
+     * @param content Writes the new content of the file
+     * @return the size of the written file in bytes
+     * @throws IOException if the temporary file couldn't be written or moved (the temporary file is removed again)
+     */
+    private long writeAtomically(Path target, ContentWriter content) throws IOException {
+        Path directory = target.getParent();
+        Path temp = Files.createTempFile(directory, "." + target.getFileName(), ".tmp");
+        long bytes;
+        try {
+            copyPermissions(target, temp);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                content.writeTo(channel);
+                bytes = channel.size();
+            }
             try {
-                Thread.sleep(50);
-            } catch (InterruptedException interruptedException) {
-                interruptedException.printStackTrace();
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                // Some file systems can't rename atomically, replacing is the best we can do there
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
             }
-            render(filename, custom_win, report_path);
-
-        } catch (IOException e) {
-            System.out.println(e);
-            throw new IllegalArgumentException("Error: couldn't write to file.");
+        } finally {
+            Files.deleteIfExists(temp);
         }
+        return bytes;
+    }
+
+    /** Gives a temporary file the permissions of the file it will replace. Temporary files are only readable by the
+     * owner, without this every rendered file would be too. A new file gets rw-r--r-- (like with the usual umask 022).
+     * Does nothing on file systems without POSIX permissions.
+     */
+    static void copyPermissions(Path target, Path temp) throws IOException {
+        if (Files.getFileAttributeView(temp, PosixFileAttributeView.class) == null) return;
+        Set<PosixFilePermission> permissions = Files.exists(target)
+                ? Files.getPosixFilePermissions(target)
+                : PosixFilePermissions.fromString("rw-r--r--");
+        Files.setPosixFilePermissions(temp, permissions);
     }
 
     /**@see #render(String, int[][][], boolean) **/
@@ -397,98 +1310,125 @@ public class Bitmap {
     /**@see #render(String, int[][][], boolean) **/
     public void render(boolean report_path) {render(filename, canvas, report_path);}
 
-    public Object[][] readFromFile(String filePath, boolean overwriteSettings) {
-        if (!filePath.contains(".") || !filePath.split("\\.")[1].equals("ppm")) {throw new IllegalArgumentException("provided file isn't in the ppm format");}
-
-        ArrayList<String> comments = new ArrayList<>();
-        Integer width = null; Integer height = null;
-        Integer maxVal = null;
-
-        boolean contentReached = false;
-        ArrayList<String> contentString = new ArrayList<>();
-        ArrayList<String> growable_lines = new ArrayList<>();
-
-        File file = new File(filePath);
-        try {
-            Scanner reader = new Scanner(file);
-            while (reader.hasNextLine()) {
-                growable_lines.add(reader.nextLine());
-            }
-        } catch (Exception ignored) {
-            throw new IllegalArgumentException("file does not exist");
+    /** Renders a mip pyramid: the canvas and every level of halved size down to 1x1 <br>
+     * Each level is downsampled from the previous one (averages of 2x2 blocks) and written through the encoder of
+     * the format before the next level is computed, so at most two levels are held at once. <br>
+     * The levels are named like the file with the level appended, e.g. scene.ppm, scene-1.ppm, scene-2.ppm, ...
+     * @param filename The name of the file of the first level, the extension selects the format
+     * @return the filenames of the levels, the full size first
+     * @see Resampler#halve(int[][][])
+     */
+    public List<String> renderPyramid(String filename) {
+        String[] parts = filename.split("\\.", 2);
+        String extension = parts.length < 2 ? "ppm" : parts[1];
+        List<String> filenames = new ArrayList<>();
+        int[][][] level = getCanvas();
+        for (int index = 0; ; index++) {
+            String level_filename = index == 0 ? filename : parts[0] + "-" + index + "." + extension;
+            render(level_filename, level, false);
+            filenames.add(level_filename);
+            if (level.length <= 1 && (level.length == 0 || level[0].length <= 1)) return filenames;
+            level = Resampler.halve(level);
         }
+    }
 
+    /**@see #renderPyramid(String) **/
+    public List<String> renderPyramid() { return renderPyramid(filename); }
 
-        String[] lines = new String[growable_lines.size()];
-        lines = growable_lines.toArray(lines);
-
-        for (int index = 1; index < lines.length; index++) {
-            String line = lines[index];
-            if (line.startsWith("#")) { // Comment line
-                comments.add(line.substring(1, line.length()));
-            } else if (!contentReached) {
-                var lineSplit = line.split(" ");
-                if (lineSplit.length > 1)
-                    if (width == null && height == null) { // Width and height line
-
-                        if (lineSplit.length != 2) { throw new IllegalArgumentException("the provided file does not contain width and height in the file header"); }
-
-                        width = Integer.parseInt(lineSplit[0]);
-                        height = Integer.parseInt(lineSplit[1]);
-
-                    } else {
-                        throw new IllegalArgumentException(("the provided file does not contain a max values in the file header"));
-                    }
-                else {
-                    try { // Max Val line
-                        maxVal = Integer.parseInt(line);
-                        contentReached = true;
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException(String.format("the line which was expected to be the max value (\"%s\") could not be cast to int", line));
-                    }
+    /** Reads a .ppm, .pgm, .pbm or .qoi file
+     * @param filePath The path of the file
+     * @param overwriteSettings Whether the canvas, its size and the comments should be replaced by the file content
+     * @return [[width, height, maxVal, comments], content_as_rows]
+     * @throws IllegalArgumentException if the file does not exist or isn't in a supported format
+     * @see PPMDecoder
+     */
+    public Object[][] readFromFile(String filePath, boolean overwriteSettings) {
+        Metrics.Measurement measurement = metrics.startRead();
+        Object[][] result;
+        if (filePath.contains(".") && filePath.split("\\.")[1].equals("qoi")) {
+            result = readFromQOI(filePath, overwriteSettings);
+        } else {
+            if (!filePath.contains(".") || !filePath.split("\\.")[1].matches("ppm|pgm|pbm")) {throw new IllegalArgumentException("provided file isn't in the ppm format");}
 
-                }
-            } else { // Content lines
-                contentString.add(line);
+            PPMDecoder.Image image;
+            try {
+                image = PPMDecoder.read(Paths.get(filePath));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("file does not exist");
             }
+            result = toReadResult(image.width, image.height, image.max_value, new ArrayList<>(image.comments), image.pixels, overwriteSettings);
         }
-        Function<String, Integer> toInt = str -> Integer.valueOf(str);
-        //ArrayList<String[]> content = _partition((_partition(Arrays.stream(String.join(" ", contentString).trim().split(" +")).map(toInt).toArray(), 3)), width);
-
+        metrics.readFinished(measurement, filePath, (int) result[0][0], (int) result[0][1]);
+        return result;
+    }
 
-        Integer[] content_as_color_information = Arrays.stream(String.join(" ", contentString).trim().split(" +")).map(toInt).toArray(Integer[]::new);
-        Integer[][] content_as_pixels = new Integer[content_as_color_information.length / 3][3];
-        for (int i = 0; i < content_as_pixels.length; i += 1) {
-            content_as_pixels[i] = Arrays.copyOfRange(content_as_color_information, i*3, i*3+3);
-        }
-        Integer[][][] content_as_rows = new Integer[height][content_as_pixels.length / width][3];
-        for (int i = 0; i < height; i += 1) {
-            content_as_rows[i] = Arrays.copyOfRange(content_as_pixels, i*width, i*width+width);
+    /** Reads a rectangular region of a .ppm, .pgm or .pbm file without decoding (or touching the canvas with) the rest. <br>
+     * The coordinates are the ones of the file, in the same system as the canvas (1, 1 is the lower left corner). <br>
+     * Binary files (P6 / P5) are read directly at the offsets of the rows, ASCII files through an index of pixel
+     * offsets that is built on the first read and cached next to the file.
+     * @param filePath The path of the file
+     * @param x_p1 The x-coordinate of the first point
+     * @param y_p1 The y-coordinate of the first point
+     * @param x_p2 The x-coordinate of the second point
+     * @param y_p2 The y-coordinate of the second point
+     * @return the pixel of the region in the layout of the canvas (rows[pixel[]], top row first)
+     * @throws IllegalArgumentException if the file does not exist, isn't supported or the region exceeds the file
+     * @see PPMRegionReader
+     */
+    public int[][][] readRegionFromFile(String filePath, int x_p1, int y_p1, int x_p2, int y_p2) {
+        int min_x, max_x, min_y, max_y;
+        min_x = Math.min(x_p1, x_p2); max_x = Math.max(x_p1, x_p2);
+        min_y = Math.min(y_p1, y_p2); max_y = Math.max(y_p1, y_p2);
+        try {
+            Path path = Paths.get(filePath);
+            int file_height = PPMRegionReader.dimensions(path)[1];
+            return PPMRegionReader.read(path, min_x - 1, file_height - max_y, max_x - min_x + 1, max_y - min_y + 1);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("file does not exist");
         }
+    }
 
-        // System.out.println(Arrays.toString(new Object[]{width, height, maxVal, comments}));
-        // System.out.println(Arrays.deepToString(content_as_rows));
+    /** Reads a .qoi file, the result has the same layout as the one of {@link #readFromFile(String, boolean)}
+     * @param filePath The path of the .qoi file
+     * @param overwriteSettings Whether the canvas and its size should be replaced by the file content
+     * @return [[width, height, maxVal, comments], content_as_rows]
+     * @throws IllegalArgumentException if the file does not exist or isn't a valid qoi file
+     */
+    private Object[][] readFromQOI(String filePath, boolean overwriteSettings) {
+        int[][][] content;
+        try (InputStream in = new FileInputStream(filePath)) {
+            content = QOI.decode(in);
+        } catch (FileNotFoundException e) {
+            throw new IllegalArgumentException("file does not exist");
+        } catch (IOException e) {
+            throw new IllegalArgumentException("provided file isn't a valid qoi file: " + e.getMessage());
+        }
+        int height = content.length;
+        int width = height == 0 ? 0 : content[0].length;
+        return toReadResult(width, height, 255, new ArrayList<>(), content, overwriteSettings);
+    }
 
-        // Convert from Integer[][][] to int[][][]
-        int[][][] content = new int[height][content_as_pixels.length / width][3];
+    /** Builds the result of {@link #readFromFile(String, boolean)} and applies the content if requested
+     * @return [[width, height, maxVal, comments], content_as_rows]
+     */
+    private Object[][] toReadResult(int width, int height, int maxVal, ArrayList<String> comments, int[][][] content, boolean overwriteSettings) {
+        Integer[][][] content_as_rows = new Integer[height][width][3];
         for (int row = 0; row < height; row++) {
-            for (int pixel = 0; pixel < content[0].length; pixel++) {
+            for (int pixel = 0; pixel < width; pixel++) {
                 for (int color_information = 0; color_information < 3; color_information++) {
-                    content[row][pixel][color_information] = content_as_rows[row][pixel][color_information];
+                    content_as_rows[row][pixel][color_information] = content[row][pixel][color_information];
                 }
             }
         }
 
         if (overwriteSettings) {
-            this.canvas_width = width;
-            this.canvas_height = height;
             this.comments.addAll(comments);
-            this.canvas = content;
+            this.max_value = maxVal > 255 ? maxVal : 255; // Deep color files switch the bitmap to their max value
+            replaceCanvas(content);
         }
 
         // [int, int, int, String[]], int[][][]]
         return new Object[][]{{width, height, maxVal, comments}, content_as_rows};
-
     }
 
     // Stores a color_provider in the RGB color_provider format
@@ -547,6 +1487,45 @@ public class Bitmap {
         Color (String color) {this(color,1.0);}
     }
 
+    /** Writes a color provider (a color or a whole pattern tree), used to send scenes to other processes
+     * @throws IllegalArgumentException if the tree contains custom or smoothed functions, they can't be written
+     * @see DistributedRender
+     */
+    static void writeColorProvider(DataOutputStream out, ColorProvider color_provider) throws IOException {
+        if (color_provider.getClass() == Color.class) {
+            out.writeBoolean(false);
+            for (int color_information : ((Color) color_provider).color) out.writeInt(color_information);
+            return;
+        }
+        Pattern pattern = (Pattern) color_provider;
+        if (pattern.pattern.equals("custom") || pattern.pattern.equals("smoothed_function")) {
+            throw new IllegalArgumentException(pattern.pattern + " patterns can't be sent to other processes");
+        }
+        out.writeBoolean(true);
+        out.writeUTF(pattern.pattern);
+        out.writeBoolean(pattern.horizontal); out.writeBoolean(pattern.shiftPattern); out.writeBoolean(pattern.auto);
+        out.writeInt(pattern.from); out.writeInt(pattern.to);
+        out.writeDouble(pattern.opacity);
+        writeColorProvider(out, pattern.slot_1);
+        writeColorProvider(out, pattern.slot_2);
+    }
+
+    /** Reads a color provider written by {@link #writeColorProvider(DataOutputStream, ColorProvider)},
+     * the patterns belong to this bitmap
+     */
+    ColorProvider readColorProvider(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return new Color(new int[]{in.readInt(), in.readInt(), in.readInt()});
+        String name = in.readUTF();
+        boolean horizontal = in.readBoolean(), shift = in.readBoolean(), auto = in.readBoolean();
+        int from = in.readInt(), to = in.readInt();
+        double opacity = in.readDouble();
+        ColorProvider slot_1 = readColorProvider(in), slot_2 = readColorProvider(in);
+        Pattern pattern = new Pattern(slot_1, slot_2, name, horizontal, shift, 0, 0, false, null, opacity, auto, null);
+        // Auto bounds can be negative, they are set past the validation (like in optimized())
+        pattern.from = from; pattern.to = to;
+        return pattern;
+    }
+
     /** Class to create patterns.
      * Patterns are a mix out of two color_provider providers.
      */
@@ -561,7 +1540,7 @@ public class Bitmap {
 
         boolean shiftPattern;
 
-        Predicate<int[]> custom_function;
+        CustomFunction custom_function;
         Function<int[], Integer> smoothed_function;
 
         int from;
@@ -570,7 +1549,12 @@ public class Bitmap {
 
         double opacity;
 
-        private Pattern (ColorProvider slot_1, ColorProvider slot_2, String pattern, boolean horizontal, boolean shiftPattern, int from, int to, boolean fastPattern, Predicate<int[]> custom_function, double opacity, boolean auto, Function<int[], Integer> smoothed_function) {
+        private boolean flat_gradient = false; // Set by optimized(): both slots are gradients between two colors
+        int[] custom_period; // The period of a custom function {x, y}, null if it isn't periodic
+        boolean memoize_custom_function; // Whether the results of the (pure) custom function are remembered
+        private FunctionMemo custom_memo;
+
+        private Pattern (ColorProvider slot_1, ColorProvider slot_2, String pattern, boolean horizontal, boolean shiftPattern, int from, int to, boolean fastPattern, CustomFunction custom_function, double opacity, boolean auto, Function<int[], Integer> smoothed_function) {
             this.slot_1 = slot_1; this.slot_2 = slot_2;
 
             this.horizontal = horizontal; this.vertical = !horizontal;
@@ -607,8 +1591,8 @@ public class Bitmap {
             return slot_2.getClass() == Color.class ? (Color) slot_2 : ((Pattern) slot_2).run(horizontal ? y : x, horizontal ? x : y);
         }
 
-        public void setSlot_1(ColorProvider slot_1) { this.slot_1 = slot_1; }
-        public void setSlot_2(ColorProvider slot_2) { this.slot_2 = slot_2; }
+        public void setSlot_1(ColorProvider slot_1) { this.slot_1 = slot_1; this.flat_gradient = false; }
+        public void setSlot_2(ColorProvider slot_2) { this.slot_2 = slot_2; this.flat_gradient = false; }
         public ColorProvider getSlot_1() { return slot_1; }
         public ColorProvider getSlot_2() { return slot_2; }
 
@@ -618,6 +1602,13 @@ public class Bitmap {
          * @return a Color
          */
         public Color run(int x, int y) {
+            metrics.patternEvaluated(pattern);
+            if (pattern_profile != null) return pattern_profile.measure(this, x, y);
+            return evaluate(x, y);
+        }
+
+        // The actual evaluation of run(), separated to be measured by the pattern profile
+        private Color evaluate(int x, int y) {
             if (shiftPattern) {x++; y++;}
             if (horizontal) {int temp = x; x = y; y = temp;}
             switch (pattern) {
@@ -636,6 +1627,7 @@ public class Bitmap {
                 case "checkerboard":
                     return (x+y) % 2 == 0 ? run_slot_1(x, y) : run_slot_2(x, y);
                 case "gradient":
+                    if (flat_gradient) return runFlatGradient(x, y);
                     double balance = Math.max(Math.min((x - from) / (double) (to - from), 1.0), 0.0);
                     if (slot_1.getClass() == Pattern.class && slot_2.getClass() == Pattern.class && ((Pattern) slot_1).pattern.equals("gradient") && ((Pattern) slot_2).pattern.equals("gradient")) {
                         return colors.mix(new Color(run_slot_1(x, y).color), new Color(run_slot_2(x, y).color), 0.5); // If both slots are gradients, the colors should be mixed 1:1
@@ -662,7 +1654,7 @@ public class Bitmap {
                 case "wave":
                     return  Math.sin((double) x/y) > 0.05 ? run_slot_1(x, y) : run_slot_2(x, y);
                 case "custom":
-                    return custom_function.test(new int[]{x, y, from, to}) ? run_slot_1(x, y) : run_slot_2(x, y);
+                    return testCustomFunction(x, y) ? run_slot_1(x, y) : run_slot_2(x, y);
                 case "smoothed_function":
                     int finalX = x;
                     int finalY = y;
@@ -671,19 +1663,154 @@ public class Bitmap {
                         int next_y = smoothed_function.apply(new int[]{finalX+1, finalY, from, to});
                         int last_y = smoothed_function.apply(new int[]{finalX-1, finalY, from, to});
 
-                        return this_y == arg[1] || arg[1] > last_y && arg[1] < next_y || arg[1] < last_y && arg[1] > next_y;
-                    };
-                    return smoothed.test(new int[]{x, y, from, to}) ? run_slot_1(x, y) : run_slot_2(x, y);
+                        return this_y == arg[1] || arg[1] > last_y && arg[1] < next_y || arg[1] < last_y && arg[1] > next_y;
+                    };
+                    return smoothed.test(new int[]{x, y, from, to}) ? run_slot_1(x, y) : run_slot_2(x, y);
+            }
+
+            throw new IllegalArgumentException(pattern + " is a unknown pattern");
+        }
+
+        private boolean testCustomFunction(int x, int y) {
+            if (!memoize_custom_function) return custom_function.test(x, y, from, to);
+            // The memo covers the canvas in the orientation of this pattern (the coordinates are swapped before the
+            // function is called), it is replaced when from, to or the size of the canvas change
+            int columns = (horizontal ? canvas_height : canvas_width) + 2, rows = (horizontal ? canvas_width : canvas_height) + 2;
+            if (custom_memo == null || custom_memo.from != from || custom_memo.to != to || custom_memo.columns != columns || custom_memo.rows != rows) {
+                custom_memo = new FunctionMemo(columns, rows, from, to);
+            }
+            return custom_memo.test(custom_function, x, y);
+        }
+
+        // A gradient of two gradients mixes both 1:1, the inner gradients are evaluated inline without creating
+        // intermediate colors. The result is exactly the one of the recursive evaluation.
+        private Color runFlatGradient(int x, int y) {
+            // The coordinates the slots would be called with
+            int slot_x = horizontal ? y : x, slot_y = horizontal ? x : y;
+            Pattern gradient_1 = (Pattern) slot_1, gradient_2 = (Pattern) slot_2;
+            double balance_1 = gradient_1.gradientBalance(slot_x, slot_y), balance_2 = gradient_2.gradientBalance(slot_x, slot_y);
+            int[] from_1 = ((Color) gradient_1.slot_1).color, to_1 = ((Color) gradient_1.slot_2).color;
+            int[] from_2 = ((Color) gradient_2.slot_1).color, to_2 = ((Color) gradient_2.slot_2).color;
+
+            int[] merged_color = new int[3];
+            for (int i = 0; i < 3; i++) {
+                int color_1 = (int) (from_1[i] * (1.0 - balance_1) + to_1[i] * balance_1);
+                int color_2 = (int) (from_2[i] * (1.0 - balance_2) + to_2[i] * balance_2);
+                merged_color[i] = (int) (color_1 * 0.5 + color_2 * 0.5);
+            }
+            return new Color(merged_color);
+        }
+
+        // The balance of a gradient at the coordinates it is called with
+        private double gradientBalance(int x, int y) {
+            if (shiftPattern) {x++; y++;}
+            if (horizontal) x = y;
+            return Math.max(Math.min((x - from) / (double) (to - from), 1.0), 0.0);
+        }
+
+        /** Returns an equivalent pattern tree that is cheaper to evaluate. The pattern itself is not changed. <br>
+         * - normal nodes are folded into their slot (constant folding) <br>
+         * - nodes that choose between two identical slots are replaced by the slot <br>
+         * - a gradient of two gradients between colors is flattened into a single node <br>
+         * Every pixel stays exactly the same, {@link #profile(Pattern, Runnable)} shows where it pays off.
+         * @return the optimized tree, a Color if the whole tree is constant
+         */
+        public ColorProvider optimized() {
+            ColorProvider optimized_1 = slot_1.getClass() == Pattern.class ? ((Pattern) slot_1).optimized() : slot_1;
+            ColorProvider optimized_2 = slot_2.getClass() == Pattern.class ? ((Pattern) slot_2).optimized() : slot_2;
+
+            // A normal node only passes the (possibly shifted) coordinates on
+            if (pattern.equals("normal") && (optimized_1.getClass() == Color.class || !shiftPattern)) return optimized_1;
+            if (isSelector() && sameSlots(optimized_1, optimized_2)) return optimized_1;
+
+            Pattern copy = new Pattern(optimized_1, optimized_2, pattern, horizontal, shiftPattern, 0, 0, false, custom_function, opacity, auto, smoothed_function);
+            // Auto bounds of areas that leave the canvas can be negative, they are copied past the validation
+            copy.from = from; copy.to = to;
+            copy.custom_period = custom_period;
+            copy.memoize_custom_function = memoize_custom_function;
+            copy.flat_gradient = pattern.equals("gradient") && isGradientBetweenColors(optimized_1) && isGradientBetweenColors(optimized_2);
+            return copy;
+        }
+
+        /** The period of the pattern tree: the colors at (x, y) and (x + width, y + height) are always the same. <br>
+         * Periodic trees are filled from a pre-rendered tile (see {@link #tile_cache_size}).
+         * Colors, normal nodes, the grid families, stripes, checkerboard and custom functions with a declared
+         * period (see {@link PatternBuilder#withPeriod(int, int)}) are periodic, as long as all of their slots are.
+         * @return {width, height}, null if the tree isn't periodic
+         */
+        public int[] getPeriod() {
+            int[] own;
+            switch (pattern) {
+                case "normal": own = new int[]{1, 1}; break;
+                case "stripes": own = new int[]{2, 1}; break;
+                case "grid": case "checkerboard": own = new int[]{2, 2}; break;
+                case "dotgrid": own = new int[]{4, 4}; break;
+                case "biggrid": own = new int[]{5, 5}; break;
+                case "flowergrid": own = new int[]{6, 6}; break;
+                case "hugegrid": own = new int[]{19, 19}; break;
+                case "superhugegrid": own = new int[]{73, 73}; break;
+                case "custom": own = custom_period; break;
+                default: own = null;
+            }
+            if (own == null) return null;
+            // The own period is defined in the (possibly swapped) coordinates of the node, the slots get the original ones
+            int[] period = horizontal ? new int[]{own[1], own[0]} : own.clone();
+            for (ColorProvider slot : pattern.equals("normal") ? new ColorProvider[]{slot_1} : new ColorProvider[]{slot_1, slot_2}) {
+                if (slot.getClass() == Color.class) continue;
+                int[] slot_period = ((Pattern) slot).getPeriod();
+                if (slot_period == null) return null;
+                period[0] = lcm(period[0], slot_period[0]);
+                period[1] = lcm(period[1], slot_period[1]);
+                if ((long) period[0] * period[1] > MAX_TILE_AREA) return null;
+            }
+            return period;
+        }
+
+        // Everything a tile of the tree depends on: the nodes, their settings and the colors
+        void appendTileKey(List<Object> key) {
+            key.add(this);
+            key.add(horizontal); key.add(shiftPattern); key.add(from); key.add(to);
+            for (ColorProvider slot : new ColorProvider[]{slot_1, slot_2}) {
+                if (slot.getClass() == Color.class) {
+                    for (int color_information : ((Color) slot).color) key.add(color_information);
+                } else {
+                    ((Pattern) slot).appendTileKey(key);
+                }
+            }
+        }
+
+        // Whether the colors of the tree only depend on the coordinates (no opacity, custom or smoothed functions),
+        // so it can be evaluated later and on several threads
+        boolean isPure() {
+            if (IMPURE_PATTERNS.contains(pattern)) return false;
+            for (ColorProvider slot : new ColorProvider[]{slot_1, slot_2}) {
+                if (slot.getClass() == Pattern.class && !((Pattern) slot).isPure()) return false;
             }
+            return true;
+        }
 
-            throw new IllegalArgumentException(pattern + " is a unknown pattern");
+        // Whether the pattern only chooses one of its slots (and can't have side effects)
+        boolean isSelector() {
+            return !NON_SELECTOR_PATTERNS.contains(pattern);
+        }
+
+        // Whether both slots always return the same color, regardless of the coordinates they are called with
+        private boolean sameSlots(ColorProvider slot_1, ColorProvider slot_2) {
+            if (slot_1.getClass() == Color.class && slot_2.getClass() == Color.class) return Arrays.equals(((Color) slot_1).color, ((Color) slot_2).color);
+            return slot_1 == slot_2 && !shiftPattern;
+        }
+
+        private boolean isGradientBetweenColors(ColorProvider color_provider) {
+            if (color_provider.getClass() != Pattern.class) return false;
+            Pattern gradient = (Pattern) color_provider;
+            return gradient.pattern.equals("gradient") && gradient.slot_1.getClass() == Color.class && gradient.slot_2.getClass() == Color.class;
         }
 
         /** Checks if the pattern is known
          * @param pattern a lowercase String containing the pattern name
          */
         public void validatePattern(String pattern) {
-            if (!Set.of("grid", "checkerboard", "stripes", "gradient", "wave", "cells", "bigcells", "dotgrid", "biggrid", "hugegrid", "superhugegrid", "flowergrid", "space", "dotlines", "custom", "opacity", "normal", "smoothed_function").contains(pattern)) {
+            if (!PATTERN_NAMES.contains(pattern)) {
                 throw new IllegalArgumentException(pattern + " is a unknown pattern");
             }
             if (from > to) throw new IllegalArgumentException("from must be smaller than to");
@@ -700,39 +1827,12 @@ public class Bitmap {
          * For example: {@code evaluateFastPattern("gradientH=auto")}  <br>
          * or: {@code evaluateFastPattern("stripesV>")}  <br>
          * or: {@code evaluateFastPattern("opacity=0.34")}  <br>
+         * Every string is only parsed once, the parsed settings are cached.
          * @param fast_pattern the fast-pattern
          * @return the pattern extracted from the fast-pattern
          */
         public String evaluateFastPattern(String fast_pattern) {
-            int pattern_length = -1;
-            for (int c = 0; c < fast_pattern.length(); c++) {
-                if (fast_pattern.charAt(c) == 'H' || fast_pattern.charAt(c) == 'V') { // Horizontal / Vertical
-                    if (pattern_length == -1) pattern_length = c;
-                    setHorizontal(fast_pattern.charAt(c) == 'H');
-                } else if (fast_pattern.charAt(c) == '>') { // Shift pattern
-                    if (pattern_length == -1) pattern_length = c;
-                    this.shiftPattern = true;
-                } else if (fast_pattern.charAt(c) == '=') { // Set from and to / opacity
-                    if (pattern_length == -1) pattern_length = c;
-                    if (fast_pattern.substring(c+1).equals("auto")) this.auto = true;
-                    else {
-                        String[] from_to = fast_pattern.substring(c+1).split("-");
-                        try {
-                            this.from = Integer.parseInt(from_to[0]);
-                            this.to = Integer.parseInt(from_to[1]);
-                        } catch (Exception ignored) {
-                            try {
-                                this.opacity = Double.parseDouble(fast_pattern.substring(c+1));
-                            } catch (Exception ignored_2) {
-                                throw new IllegalArgumentException("from-to / opacity was not declared properly");
-                            }
-                        }
-                    }
-                }
-            }
-
-            if (pattern_length == -1) return fast_pattern;
-            else return fast_pattern.substring(0, pattern_length);
+            return FastPattern.parse(fast_pattern).applyTo(this);
         }
 
         public void setHorizontal(boolean horizontal) {
@@ -743,15 +1843,15 @@ public class Bitmap {
             return pattern;
         }
 
-        private Pattern(ColorProvider slot_1, ColorProvider slot_2, String pattern, boolean horizontal, boolean shiftPattern, int from, int to, boolean fastPattern, Predicate<int[]> custom_function, double opacity, boolean auto) {
+        private Pattern(ColorProvider slot_1, ColorProvider slot_2, String pattern, boolean horizontal, boolean shiftPattern, int from, int to, boolean fastPattern, CustomFunction custom_function, double opacity, boolean auto) {
             this(slot_1, slot_2, pattern, horizontal, shiftPattern, from, to, fastPattern, custom_function, opacity, auto, null);
         }
 
-        private Pattern (ColorProvider slot_1, ColorProvider slot_2, String pattern, boolean horizontal, boolean shiftPattern, int from, int to, boolean fastPattern, Predicate<int[]> custom_function, double opacity) {
+        private Pattern (ColorProvider slot_1, ColorProvider slot_2, String pattern, boolean horizontal, boolean shiftPattern, int from, int to, boolean fastPattern, CustomFunction custom_function, double opacity) {
             this(slot_1, slot_2, pattern, horizontal, shiftPattern, from, to, fastPattern, custom_function, opacity, false);
         }
 
-        private Pattern (ColorProvider slot_1, ColorProvider slot_2, String pattern, boolean horizontal, boolean shiftPattern, int from, int to, boolean fastPattern, Predicate<int[]> custom_function) {
+        private Pattern (ColorProvider slot_1, ColorProvider slot_2, String pattern, boolean horizontal, boolean shiftPattern, int from, int to, boolean fastPattern, CustomFunction custom_function) {
             this(slot_1, slot_2, pattern, horizontal, shiftPattern, from, to, fastPattern, custom_function, 1.0);
         }
 
@@ -787,9 +1887,20 @@ public class Bitmap {
          *                        versa the second one, when it returns false. <br>
          *                        Example: <br>
          *                        {@code Predicate<int[]> custom_fun = arr -> arr[0] * arr[1] % 16 == 0;}
-         *
+         * @see #Pattern(ColorProvider, ColorProvider, CustomFunction) which doesn't allocate an array per pixel
          */
         public Pattern (ColorProvider slot_1, ColorProvider slot_2, Predicate<int[]> custom_function) {
+            this(slot_1, slot_2, "custom", false, false, 0, 0, true, CustomFunction.of(custom_function));
+        }
+
+        /** Custom pattern with a primitive function
+         * @param slot_1 The first object
+         * @param slot_2 The second object
+         * @param custom_function Function of the x- and y-coordinate and the from and to variables. <br>
+         *                        When it returns true, the first slot is called, else the second one. <br>
+         *                        Example: {@code (x, y, from, to) -> x * y % 16 == 0}
+         */
+        public Pattern (ColorProvider slot_1, ColorProvider slot_2, CustomFunction custom_function) {
             this(slot_1, slot_2, "custom", false, false, 0, 0, true, custom_function);
         }
 
@@ -826,6 +1937,8 @@ public class Bitmap {
 
         public Pattern(PatternBuilder patternBuilder) {
             this(patternBuilder.slot_1, patternBuilder.slot_2, patternBuilder.pattern, patternBuilder.horizontal, patternBuilder.shiftPattern, patternBuilder.from, patternBuilder.to, patternBuilder.isFastPattern, patternBuilder.custom_function, patternBuilder.opacity, patternBuilder.auto, patternBuilder.smoothed_function);
+            this.custom_period = patternBuilder.period;
+            this.memoize_custom_function = patternBuilder.memoize;
         }
 
     }
@@ -838,7 +1951,7 @@ public class Bitmap {
         boolean horizontal = true;
         boolean shiftPattern = false;
 
-        Predicate<int[]> custom_function;
+        CustomFunction custom_function;
         Function<int[], Integer> smoothed_function;
 
         int from = 0;
@@ -849,6 +1962,9 @@ public class Bitmap {
 
         double opacity = 1.0;
 
+        int[] period; // The period of the custom function, null if it isn't periodic
+        boolean memoize = false;
+
         // PatternBuilder should only be created through the PatternBuilders class
         private PatternBuilder(ColorProvider slot_1, ColorProvider slot_2, String pattern) {
             this.slot_1 = slot_1; this.slot_2 = slot_2;
@@ -878,9 +1994,20 @@ public class Bitmap {
             return this;
         }
         public PatternBuilder withCustomFunction(Predicate<int[]> custom_function) {
+            this.custom_function = CustomFunction.of(custom_function);
+            return this;
+        }
+        public PatternBuilder withCustomFunction(CustomFunction custom_function) {
             this.custom_function = custom_function;
             return this;
         }
+        /** Remembers the result of the custom function for every coordinate (as long as from and to stay the same),
+         * filling the same area again skips the function entirely. Only use it for pure functions.
+         */
+        public PatternBuilder withMemo() {
+            this.memoize = true;
+            return this;
+        }
         public PatternBuilder withSmoothedFunction(Function<int[], Integer> smoothed_function) {
             this.smoothed_function = smoothed_function;
             return this;
@@ -897,6 +2024,15 @@ public class Bitmap {
             this.isFastPattern = isFastPattern;
             return this;
         }
+        /** Declares the custom function as periodic, which allows filling it from a pre-rendered tile
+         * @param period_x The function returns the same for x and x + period_x
+         * @param period_y The function returns the same for y and y + period_y
+         */
+        public PatternBuilder withPeriod(int period_x, int period_y) {
+            if (period_x < 1 || period_y < 1) throw new IllegalArgumentException("the period must be at least 1");
+            this.period = new int[]{period_x, period_y};
+            return this;
+        }
         public Pattern build() {
             return new Pattern(this);
         }
@@ -910,25 +2046,30 @@ public class Bitmap {
      * @see Pattern
      */
     public class Colors {
-        public final Color red() { return new Color(new int[]{255, 0, 0});}
-        public final Color green() { return new Color(new int[]{0, 255, 0});}
-        public final Color blue() { return new Color(new int[]{0, 0, 255});}
+        public final Color red() { return named(255, 0, 0);}
+        public final Color green() { return named(0, 255, 0);}
+        public final Color blue() { return named(0, 0, 255);}
 
-        public final Color yellow() { return new Color(new int[]{255, 255, 0});}
-        public final Color purple() { return new Color(new int[]{255, 0, 255});}
-        public final Color turquoise() { return new Color(new int[]{0, 255, 255});}
-        public final Color orange() { return new Color(new int[]{255, 100, 0});}
-        public final Color brown() { return new Color(new int[]{170, 80, 0});}
-        public final Color pink() { return new Color(new int[]{255, 105, 180});}
+        public final Color yellow() { return named(255, 255, 0);}
+        public final Color purple() { return named(255, 0, 255);}
+        public final Color turquoise() { return named(0, 255, 255);}
+        public final Color orange() { return named(255, 100, 0);}
+        public final Color brown() { return named(170, 80, 0);}
+        public final Color pink() { return named(255, 105, 180);}
 
         public final Color light_blue() { return mix(blue(), white()); }
 
-        public final Color black() { return new Color(new int[]{0, 0, 0});}
-        public final Color white() { return new Color(new int[]{255, 255, 255});}
+        public final Color black() { return named(0, 0, 0);}
+        public final Color white() { return named(255, 255, 255);}
 
-        public final Color light_grey() { return new Color(new int[]{210, 210, 210});}
-        public final Color grey() { return new Color(new int[]{140, 140, 140});}
-        public final Color dark_grey() { return new Color(new int[]{70, 70, 70});}
+        public final Color light_grey() { return named(210, 210, 210);}
+        public final Color grey() { return named(140, 140, 140);}
+        public final Color dark_grey() { return named(70, 70, 70);}
+
+        // A color given in 8 bit, scaled to the max value of the bitmap
+        private Color named(int r, int g, int b) {
+            return new Color(new int[]{r * max_value / 255, g * max_value / 255, b * max_value / 255});
+        }
 
         /**@return a transparent color_provider*/
         public final Pattern transparent() {return new Pattern(white(), 1.0);}
@@ -952,7 +2093,7 @@ public class Bitmap {
             Random ran = new Random();
             Color color;
             if (true_random) {
-                color = new Color(ran.nextInt(255), ran.nextInt(255), ran.nextInt(255));
+                color = new Color(ran.nextInt(max_value), ran.nextInt(max_value), ran.nextInt(max_value));
             } else {
                 Color[] list = list();
                 color = list[ran.nextInt(list.length)];
@@ -987,6 +2128,16 @@ public class Bitmap {
 
         }
 
+        /**@see #merge(ColorProvider, ColorProvider, Predicate)
+         * @see Pattern#Pattern(ColorProvider, ColorProvider, CustomFunction)
+         */
+        public Pattern merge(ColorProvider slot_1, ColorProvider slot_2, CustomFunction custom_function) {
+            if (custom_function == null) {
+                throw new IllegalArgumentException("custom_function needs to be set when using the \"custom\" fast pattern");
+            }
+            return new Pattern(slot_1, slot_2, custom_function);
+        }
+
         /** Merges the two color_provider providers in a custom fast pattern
          * @param slot_1 The first color_provider provider
          * @param slot_2 The second color_provider provider
@@ -999,6 +2150,35 @@ public class Bitmap {
             return new Pattern(slot_1, slot_2, fast_pattern);
         }
 
+        /** Like {@link #merge(ColorProvider, ColorProvider, String)}, but returns the same pattern for the same
+         * fast pattern and slots, which makes creating patterns inside a frame loop a hash lookup. <br>
+         * Fast patterns are compared by their settings ("stripesH" and "stripesH>" differ, two equal strings don't),
+         * colors by their rgb values (the pattern keeps its own copy), patterns by identity. <br>
+         * The returned pattern is shared, it must not be modified (auto patterns are fine).
+         * @see #pattern_registry_size
+         */
+        public Pattern mergeCached(ColorProvider slot_1, ColorProvider slot_2, String fast_pattern) {
+            List<Object> key = List.of(FastPattern.parse(fast_pattern), registryKey(slot_1), registryKey(slot_2));
+            synchronized (pattern_registry) {
+                Pattern pattern = pattern_registry.get(key);
+                if (pattern == null) {
+                    pattern = new Pattern(registryCopy(slot_1), registryCopy(slot_2), fast_pattern);
+                    pattern_registry.put(key, pattern);
+                }
+                return pattern;
+            }
+        }
+
+        private Object registryKey(ColorProvider color_provider) {
+            if (color_provider.getClass() != Color.class) return color_provider;
+            int[] color = ((Color) color_provider).color;
+            return List.of(color[0], color[1], color[2]);
+        }
+
+        private ColorProvider registryCopy(ColorProvider color_provider) {
+            return color_provider.getClass() == Color.class ? new Color(((Color) color_provider).color.clone()) : color_provider;
+        }
+
         /** Mixes two colors with a specified balance
          * @param color_1 The first integer array with color_provider information in rgb
          * @param color_2 The second integer array with color_provider information in rgb
@@ -1075,6 +2255,7 @@ public class Bitmap {
         public PatternBuilder fastPattern(ColorProvider slot_1, ColorProvider slot_2, String fast_pattern) {return new PatternBuilder(slot_1, slot_2, fast_pattern).withIsFastPattern(true); }
 
         public PatternBuilder custom(ColorProvider slot_1, ColorProvider slot_2, Predicate<int[]> custom_function) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction(custom_function); }
+        public PatternBuilder custom(ColorProvider slot_1, ColorProvider slot_2, CustomFunction custom_function) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction(custom_function); }
 
         /**
          * @param function_cp The color_provider of the function (foreground)
@@ -1084,11 +2265,11 @@ public class Bitmap {
          */
         public PatternBuilder smoothedFunction(ColorProvider function_cp, ColorProvider background_cp, Function<int[], Integer> smoothed_function) { return new PatternBuilder(function_cp, background_cp, "smoothed_function").withSmoothedFunction(smoothed_function).withVertical(); }
 
-        public PatternBuilder gridVariants(ColorProvider slot_1, ColorProvider slot_2, int factor) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction(arr ->  arr[0] * arr[1] % (factor) == 0); }
-        public PatternBuilder cellsVariants(ColorProvider slot_1, ColorProvider slot_2, int factor) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction(arr ->  (int) (Math.PI * arr[0] * arr[1]) % (factor) == 0); }
-        public PatternBuilder circleBorderVariants(ColorProvider slot_1, ColorProvider slot_2, int spread) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction(arr ->  (int) (Math.sqrt(arr[0] * arr[1])) % spread == 0); }
+        public PatternBuilder gridVariants(ColorProvider slot_1, ColorProvider slot_2, int factor) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction((x, y, from, to) ->  x * y % (factor) == 0).withPeriod(factor, factor); }
+        public PatternBuilder cellsVariants(ColorProvider slot_1, ColorProvider slot_2, int factor) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction((x, y, from, to) ->  (int) (Math.PI * x * y) % (factor) == 0); }
+        public PatternBuilder circleBorderVariants(ColorProvider slot_1, ColorProvider slot_2, int spread) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction((x, y, from, to) ->  (int) (Math.sqrt(x * y)) % spread == 0); }
 
-        public PatternBuilder aslantStripes(ColorProvider slot_1, ColorProvider slot_2, int spread) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction(arr ->  (arr[0] + arr[1]) % (spread) == 0); }
+        public PatternBuilder aslantStripes(ColorProvider slot_1, ColorProvider slot_2, int spread) { return new PatternBuilder(slot_1, slot_2, "custom").withCustomFunction((x, y, from, to) ->  (x + y) % (spread) == 0).withPeriod(spread, spread); }
 
         public PatternBuilder normal(ColorProvider slot_1) { return new PatternBuilder(slot_1, "normal"); }
         public PatternBuilder grid(ColorProvider slot_1, ColorProvider slot_2) { return new PatternBuilder(slot_1, slot_2, "grid"); }
@@ -1149,6 +2330,7 @@ public class Bitmap {
      * currently cross, circle and tree are available
      */
     public class Shapes {
+        static final int BATCH_BAND_HEIGHT = 32; // The height of the bands of rows that batches are rasterized in
 
 
         /** Method to create a cross at a specified position
@@ -1160,6 +2342,7 @@ public class Bitmap {
          * @param outline
          */
         public void cross(int pos_x, int pos_y, int size, int thickness, ColorProvider color_provider, Outline outline){
+            Metrics.Measurement measurement = metrics.startShape();
             Pattern[] lockedPatterns = setAutoPattern(pos_x - size, pos_x + size, pos_y - size, pos_y + size, color_provider, true);
             if (outline != null) setAutoPattern(pos_x - size, pos_x + size, pos_y - size, pos_y + size, outline.color_provider, true);
 
@@ -1169,6 +2352,7 @@ public class Bitmap {
             fillArea(pos_x - thickness, pos_y - size, pos_x + thickness, pos_y + size, color_provider, outline);
             fillArea(pos_x - size, pos_y - thickness, pos_x + size, pos_y + thickness, color_provider);
             unlockAutoPattern(lockedPatterns);
+            metrics.shapeFinished("cross", measurement);
         }
 
         // *** Overloads ***
@@ -1183,35 +2367,44 @@ public class Bitmap {
         }
 
 
-        /**
+        /** Draws a circle row by row as spans, only the rows and columns inside the canvas and the clip are visited
          * @param pos_x of the circle
          * @param pos_y of the circle
          * @param radius of the circle
          * @param color_provider a color_provider provider for the body, can be either a Pattern or a Color
-         * @param borderclip whether the circle should raise an exception if the accessed pixel is outside the canvas
+         * @param borderclip whether the circle should raise an exception if a part of it is outside the canvas (checked before anything is drawn)
          * @param outline a border object, set to null if unwanted
-         * @throws IllegalArgumentException when borderclip is set to false and the accessed pixel is outside the canvas
+         * @throws Exceptions.PixelOutOfBoundsException when borderclip is set (or the bitmap is strict) and the circle leaves the canvas
          */
         public void circle(int pos_x, int pos_y, int radius, ColorProvider color_provider, boolean borderclip, Outline outline) {
+            Metrics.Measurement measurement = metrics.startShape();
+            checkType(color_provider);
+            if (strict && radius < 0) throw new IllegalArgumentException("the radius can't be negative");
+            if (borderclip || strict) {
+                // The pixel of the circle reach radius - 1 to every side, the outline is checked by its own circle
+                requireInside(pos_x - radius + 1, pos_x + radius - 1, pos_y - radius + 1, pos_y + radius - 1);
+            }
 
             //Gradient auto
             setAutoPattern(pos_x-radius, pos_x+radius, pos_y-radius, pos_y+radius, color_provider, false);
             if (outline != null && outline.active) circle(pos_x, pos_y, radius+outline.thickness, outline.color_provider, borderclip);
             // if (outline != null) setAutoPattern(pos_x-radius, pos_x+radius, pos_y-radius, pos_y+radius, outline, false);
 
-            for (int y = pos_y-radius; y < pos_y+radius; y++) {
-                for (int x = pos_x-radius; x < pos_x+radius; x++) {
-                    int equation = (int) (Math.pow(radius, 2) - (Math.pow(pos_x - x, 2) + Math.pow(pos_y-y, 2)));
-
-                    if (equation > 0) {
-                        try {
-                            changePixel(x, y, color_provider);
-                        } catch (Exceptions.PixelOutOfBoundsException e) {
-                            if (borderclip) throw e;
-                        }
-                    }
+            int clip_left = clipLeft(), clip_right = clipRight();
+            int last_y = Math.min(pos_y + radius - 1, clipTop());
+            for (int y = Math.max(pos_y - radius + 1, clipBottom()); y <= last_y; y++) {
+                int half_width = circleHalfWidth(radius, pos_y - y);
+                int first = Math.max(pos_x - half_width, clip_left), last = Math.min(pos_x + half_width, clip_right);
+                if (half_width < 0 || first > last) continue;
+                int[][] pixels = editableRow(canvas_height - y);
+                if (color_provider.getClass() == Color.class) {
+                    Arrays.fill(pixels, first - 1, last, ((Color) color_provider).color);
+                } else {
+                    for (int x = first; x <= last; x++) pixels[x - 1] = ((Pattern) color_provider).run(x, y).color;
                 }
+                metrics.spanFilled(last - first + 1);
             }
+            metrics.shapeFinished("circle", measurement);
         }
 
         // *** Overloads ***
@@ -1221,7 +2414,134 @@ public class Bitmap {
         public void circle(int pos_x, int pos_y, int radius, ColorProvider color_provider, boolean borderclip) {circle(pos_x, pos_y, radius, color_provider, borderclip, null);}
 
 
+        /** Draws many circles at once, the result is the same as calling circle() for each of them in order. <br>
+         * The circles are sorted into bands of {@value #BATCH_BAND_HEIGHT} rows (keeping their order) and the bands are
+         * rasterized in parallel as spans. The span widths of a radius are computed once and reused. Parts outside
+         * the canvas or the clip are skipped.
+         * @param x_positions The x-coordinates of the centers
+         * @param y_positions The y-coordinates of the centers
+         * @param radii The radii
+         * @param color_indices The index of the color of every circle in the palette
+         * @param palette The colors, patterns aren't supported in batches
+         * @throws IllegalArgumentException if the arrays have different lengths, a radius is negative or a color index is outside the palette
+         * @throws Exceptions.PixelOutOfBoundsException if the bitmap is strict and a circle leaves the canvas
+         */
+        public void circles(int[] x_positions, int[] y_positions, int[] radii, int[] color_indices, Color[] palette) {
+            Metrics.Measurement measurement = metrics.startShape();
+            int count = checkBatch(x_positions, y_positions, radii, radii, color_indices, palette);
+            int[][] stamps = new int[count][];
+            Map<Integer, int[]> batch_stamps = new HashMap<>();
+            int[] top = new int[count], bottom = new int[count];
+            for (int i = 0; i < count; i++) {
+                stamps[i] = batch_stamps.computeIfAbsent(radii[i], Bitmap::circleStamp);
+                // Rows of the canvas (0 = top row): the circle covers y from pos_y - radius to pos_y + radius - 1
+                top[i] = canvas_height - (y_positions[i] + radii[i] - 1);
+                bottom[i] = canvas_height - (y_positions[i] - radii[i]);
+                checkInside(x_positions[i] - radii[i] + 1, x_positions[i] + radii[i] - 1, y_positions[i] - radii[i] + 1, y_positions[i] + radii[i] - 1);
+            }
+            drawBatch(count, top, bottom, (i, row, pixels) -> {
+                int half_width = stamps[i][row - top[i]];
+                if (half_width < 0) return;
+                fillSpan(pixels, x_positions[i] - half_width, x_positions[i] + half_width, palette[color_indices[i]].color);
+            });
+            metrics.shapeFinished("circles", measurement);
+        }
+
+        /** Draws many rectangles at once, the result is the same as calling fillArea() for each of them in order
+         * @param x_positions The x-coordinates of the left columns
+         * @param y_positions The y-coordinates of the bottom rows
+         * @param widths The widths
+         * @param heights The heights
+         * @param color_indices The index of the color of every rectangle in the palette
+         * @param palette The colors, patterns aren't supported in batches
+         * @throws IllegalArgumentException if the arrays have different lengths, a size is negative or a color index is outside the palette
+         * @throws Exceptions.PixelOutOfBoundsException if the bitmap is strict and a rectangle leaves the canvas
+         * @see #circles(int[], int[], int[], int[], Color[])
+         */
+        public void rects(int[] x_positions, int[] y_positions, int[] widths, int[] heights, int[] color_indices, Color[] palette) {
+            Metrics.Measurement measurement = metrics.startShape();
+            int count = checkBatch(x_positions, y_positions, widths, heights, color_indices, palette);
+            int[] top = new int[count], bottom = new int[count];
+            for (int i = 0; i < count; i++) {
+                top[i] = canvas_height - (y_positions[i] + heights[i] - 1);
+                bottom[i] = canvas_height - y_positions[i];
+                checkInside(x_positions[i], x_positions[i] + widths[i] - 1, y_positions[i], y_positions[i] + heights[i] - 1);
+            }
+            drawBatch(count, top, bottom, (i, row, pixels) ->
+                    fillSpan(pixels, x_positions[i], x_positions[i] + widths[i] - 1, palette[color_indices[i]].color));
+            metrics.shapeFinished("rects", measurement);
+        }
+
+        /** Draws one row of a shape of a batch */
+        private interface BatchRow {
+            void draw(int shape, int row, int[][] pixels);
+        }
+
+        // Validates the arguments of a batch and returns the amount of shapes
+        private int checkBatch(int[] x_positions, int[] y_positions, int[] sizes_1, int[] sizes_2, int[] color_indices, Color[] palette) {
+            int count = x_positions.length;
+            if (y_positions.length != count || sizes_1.length != count || sizes_2.length != count || color_indices.length != count) {
+                throw new IllegalArgumentException("all arrays of a batch must have the same length");
+            }
+            for (Color color : palette) validateColor(color);
+            for (int i = 0; i < count; i++) {
+                if (sizes_1[i] < 0 || sizes_2[i] < 0) throw new IllegalArgumentException("the size of shape " + i + " is negative");
+                if (color_indices[i] < 0 || color_indices[i] >= palette.length) throw new IllegalArgumentException("the color index of shape " + i + " is outside the palette");
+            }
+            return count;
+        }
+
+        /** Sorts the shapes into bands and rasterizes the bands in parallel
+         * @param top The first canvas row of every shape (0 = top row, may be outside the canvas)
+         * @param bottom The last canvas row of every shape
+         */
+        private void drawBatch(int count, int[] top, int[] bottom, BatchRow batch_row) {
+            int bands = (canvas_height + BATCH_BAND_HEIGHT - 1) / BATCH_BAND_HEIGHT;
+            int clip_top = canvas_height - clipTop(), clip_bottom = canvas_height - clipBottom(); // The visible rows
+            // Counting sort of the shapes into the bands they touch, stable so the order within a band is kept
+            int[] offsets = new int[bands + 1];
+            int[] coverage = new int[canvas_height + 1]; // Differences of the amount of shapes per row
+            for (int i = 0; i < count; i++) {
+                int first = Math.max(top[i], clip_top), last = Math.min(bottom[i], clip_bottom);
+                if (first > last) continue;
+                for (int band = first / BATCH_BAND_HEIGHT; band <= last / BATCH_BAND_HEIGHT; band++) offsets[band + 1]++;
+                coverage[first]++; coverage[last + 1]--;
+            }
+            for (int band = 0; band < bands; band++) offsets[band + 1] += offsets[band];
+            int[] entries = new int[offsets[bands]];
+            int[] next = Arrays.copyOf(offsets, bands);
+            for (int i = 0; i < count; i++) {
+                int first = Math.max(top[i], clip_top), last = Math.min(bottom[i], clip_bottom);
+                if (first > last) continue;
+                for (int band = first / BATCH_BAND_HEIGHT; band <= last / BATCH_BAND_HEIGHT; band++) entries[next[band]++] = i;
+            }
+
+            int[][][] rows = new int[canvas_height][][];
+            for (int row = 0, shapes = 0; row < canvas_height; row++) {
+                shapes += coverage[row];
+                if (shapes > 0) rows[row] = editableRow(row);
+            }
+            IntStream.range(0, bands).parallel().forEach(band -> {
+                int band_top = Math.max(band * BATCH_BAND_HEIGHT, clip_top);
+                int band_bottom = Math.min(Math.min(band * BATCH_BAND_HEIGHT + BATCH_BAND_HEIGHT, canvas_height) - 1, clip_bottom);
+                for (int entry = offsets[band]; entry < offsets[band + 1]; entry++) {
+                    int i = entries[entry];
+                    int last = Math.min(bottom[i], band_bottom);
+                    for (int row = Math.max(top[i], band_top); row <= last; row++) batch_row.draw(i, row, rows[row]);
+                }
+            });
+        }
+
+        // Fills the pixel of the x-coordinates from to to of a row, clipped to the canvas and the clip
+        private void fillSpan(int[][] pixels, int from, int to, int[] color) {
+            from = Math.max(from, clipLeft()); to = Math.min(to, clipRight());
+            if (from > to) return;
+            Arrays.fill(pixels, from - 1, to, color);
+            metrics.spanFilled(to - from + 1);
+        }
+
         public void triangle(int pos_x, int pos_y, int size, ColorProvider color_provider, ColorProvider outline_color_provider) {
+            Metrics.Measurement measurement = metrics.startShape();
             System.out.println("NOT IMPLEMENTED");
             setAutoPattern(pos_x-size, pos_x+size, pos_y-size, pos_y+size, color_provider, false);
 
@@ -1230,13 +2550,110 @@ public class Bitmap {
                     break;
                 }
             }
+            metrics.shapeFinished("triangle", measurement);
         }
 
         public void tree(int x_pos, int y_pos, double size) {
+            Metrics.Measurement measurement = metrics.startShape();
             lineV(y_pos, y_pos + (int) (22 * size), x_pos, colors.brown(), (int) (8 * size));
             shapes.circle(x_pos + ((int) (8 * size))/2, y_pos + (int) (22 * size), (int) (18 * size), colors.green().setAlpha(0.5), false);
             shapes.circle(x_pos + ((int) (8 * size))/2, y_pos + (int) (37 * size), (int) (14 * size), colors.green().setAlpha(0.6), false);
             shapes.circle(x_pos + ((int) (8 * size))/2, y_pos + (int) (50 * size), (int) (10 * size), colors.green().setAlpha(0.7), false);
+            metrics.shapeFinished("tree", measurement);
+        }
+    }
+
+    /** Class that stores image filters (blurs and convolution kernels), see {@link Convolution} <br>
+     * The canvas is converted into a buffer once, the passes work on row bands in parallel and the result is written
+     * back in one step (pixel whose color didn't change keep their array), so a filter is a single undo step.
+     */
+    public class Filters {
+
+        /** Blurs the canvas with a box of (2 * radius + 1) x (2 * radius + 1) pixel, the cost doesn't depend on the radius
+         * @param radius The radius of the box, 0 does nothing
+         */
+        public void boxBlur(int radius) {
+            if (radius < 0) throw new IllegalArgumentException("the radius can't be negative");
+            if (radius == 0) return;
+            float[] image = Convolution.toBuffer(getCanvas());
+            Convolution.boxBlur(image, new float[image.length], canvas_width, canvas_height, radius);
+            apply(image);
+        }
+
+        /** Blurs the canvas with a gaussian kernel, applied separately to the rows and columns
+         * @param sigma The standard deviation in pixel, the kernel covers 3 sigma to each side
+         */
+        public void gaussianBlur(double sigma) {
+            float[] kernel = Convolution.gaussianKernel(sigma);
+            separable(kernel, kernel);
+        }
+
+        /** Applies a separable kernel: the rows are convolved with kernel_x, the columns with kernel_y
+         * @param kernel_x A kernel of odd length, the center is the middle element
+         * @param kernel_y A kernel of odd length, the center is the middle element
+         */
+        public void separable(float[] kernel_x, float[] kernel_y) {
+            float[] image = Convolution.toBuffer(getCanvas());
+            Convolution.separable(image, new float[image.length], canvas_width, canvas_height, kernel_x, kernel_y);
+            apply(image);
+        }
+
+        /** Applies a square convolution kernel (usually 3x3 or 5x5), the kernel isn't normalized
+         * @param kernel kernel[row][column], odd size, the center is the middle element
+         */
+        public void convolve(float[][] kernel) {
+            float[] image = Convolution.toBuffer(getCanvas());
+            float[] result = new float[image.length];
+            Convolution.convolve(image, result, canvas_width, canvas_height, kernel);
+            apply(result);
+        }
+
+        /** Sharpens the canvas with the 3x3 kernel {0 -1 0, -1 5 -1, 0 -1 0} */
+        public void sharpen() {
+            convolve(new float[][]{{0, -1, 0}, {-1, 5, -1}, {0, -1, 0}});
+        }
+
+        /** Replaces the canvas with its edges (3x3 laplacian kernel), flat areas become black */
+        public void edges() {
+            convolve(new float[][]{{-1, -1, -1}, {-1, 8, -1}, {-1, -1, -1}});
+        }
+
+        /** Blurs the canvas with the 5x5 binomial kernel (an approximation of a gaussian blur) */
+        public void smooth() {
+            float[] kernel = {1 / 16f, 4 / 16f, 6 / 16f, 4 / 16f, 1 / 16f};
+            separable(kernel, kernel);
+        }
+
+        // Writes a buffer back to the canvas, the values are rounded and clamped to 0 - max_value
+        private void apply(float[] image) {
+            Metrics.Measurement measurement = metrics.startShape();
+            int[][][] rows = new int[canvas_height][][];
+            for (int row = 0; row < canvas_height; row++) rows[row] = editableRow(row);
+            Convolution.bands(canvas_height, (from, to) -> {
+                for (int row = from; row < to; row++) {
+                    int[][] pixels = rows[row];
+                    int position = row * canvas_width * 3;
+                    int[] previous = null;
+                    for (int column = 0; column < canvas_width; column++, position += 3) {
+                        int r = channel(image[position]), g = channel(image[position + 1]), b = channel(image[position + 2]);
+                        int[] pixel = pixels[column];
+                        if (pixel[0] == r && pixel[1] == g && pixel[2] == b) {
+                            previous = pixel;
+                        } else if (previous != null && previous[0] == r && previous[1] == g && previous[2] == b) {
+                            pixels[column] = previous;
+                        } else {
+                            previous = pixels[column] = new int[]{r, g, b};
+                        }
+                    }
+                }
+            });
+            metrics.spanFilled((long) canvas_width * canvas_height);
+            metrics.shapeFinished("filter", measurement);
+        }
+
+        private int channel(float value) {
+            int rounded = Math.round(value);
+            return rounded < 0 ? 0 : Math.min(rounded, max_value);
         }
     }
 
@@ -1255,6 +2672,349 @@ public class Bitmap {
         }
     }
 
+    /** Profiles the pattern evaluations of a drawing operation. <br>
+     * For example: {@code System.out.println(bitmap.profile(pattern, () -> bitmap.fillArea(1, 1, 800, 800, pattern)));}
+     * @param pattern The root of the pattern tree that is reported
+     * @param operation The drawing operation that uses the pattern
+     * @return the evaluation counts and times of every node of the tree, with suggestions for optimizations
+     * @see Pattern#optimized()
+     */
+    public PatternProfile profile(Pattern pattern, Runnable operation) {
+        PatternProfile profile = new PatternProfile(pattern);
+        pattern_profile = profile;
+        long start = System.nanoTime();
+        try {
+            operation.run();
+        } finally {
+            profile.total_nanos = System.nanoTime() - start;
+            pattern_profile = null;
+        }
+        return profile;
+    }
+
+    /** Opt-in instrumentation of the bitmap operations. <br>
+     * Nothing is recorded until {@code metrics.enabled} is set to true, which keeps the overhead to a single
+     * field check when disabled. When enabled, the following is recorded: <br>
+     * - counters for written pixels, filled spans (rows or parts of rows written at once), pattern evaluations
+     *   per pattern type and encoded bytes <br>
+     * - latency histograms for render, readFromFile and every Shapes call (see {@link #getLatency(String)}) <br>
+     * - JDK Flight Recorder events (bitmap.Render, bitmap.Read, bitmap.Shape) that span the operation (their
+     *   duration is the latency), which show up in any recording that has them enabled (for example
+     *   {@code -XX:StartFlightRecording})
+     */
+    public static class Metrics {
+        public volatile boolean enabled = false;
+
+        private final LongAdder pixels_written = new LongAdder();
+        private final LongAdder spans_filled = new LongAdder();
+        private final LongAdder bytes_encoded = new LongAdder();
+        private final LongAdder render_retries = new LongAdder();
+        private final Map<String, LongAdder> pattern_evaluations = new ConcurrentHashMap<>();
+        private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+        private volatile long last_render_nanos;
+
+        /** A started operation: the start time for the latency histogram and the JFR event, which has begun */
+        static final class Measurement {
+            final long start = System.nanoTime();
+            final Event event;
+
+            Measurement(Event event) {
+                this.event = event;
+                event.begin();
+            }
+        }
+
+        /**@return the measurement of a render that starts now, or null when disabled */
+        Measurement startRender() {
+            return enabled ? new Measurement(new RenderEvent()) : null;
+        }
+
+        /**@return the measurement of a read that starts now, or null when disabled */
+        Measurement startRead() {
+            return enabled ? new Measurement(new ReadEvent()) : null;
+        }
+
+        /**@return the measurement of a Shapes call (or a filter) that starts now, or null when disabled */
+        Measurement startShape() {
+            return enabled ? new Measurement(new ShapeEvent()) : null;
+        }
+
+        void pixelsWritten(long pixels) {
+            if (enabled) pixels_written.add(pixels);
+        }
+
+        // A span is written at once, its pixels are counted as well
+        void spanFilled(long pixels) {
+            if (!enabled) return;
+            spans_filled.increment();
+            pixels_written.add(pixels);
+        }
+
+        void patternEvaluated(String pattern) {
+            if (enabled) pattern_evaluations.computeIfAbsent(pattern, key -> new LongAdder()).increment();
+        }
+
+        void renderRetried() {
+            if (enabled) render_retries.increment();
+        }
+
+        void renderFinished(Measurement measurement, Path file, long bytes) {
+            if (!enabled || measurement == null) return;
+            last_render_nanos = finished("render", measurement);
+            bytes_encoded.add(bytes);
+            RenderEvent event = (RenderEvent) measurement.event;
+            if (event.shouldCommit()) {
+                event.file = file.toString(); event.bytes = bytes;
+                event.commit();
+            }
+        }
+
+        void readFinished(Measurement measurement, String file, int width, int height) {
+            if (!enabled || measurement == null) return;
+            finished("readFromFile", measurement);
+            ReadEvent event = (ReadEvent) measurement.event;
+            if (event.shouldCommit()) {
+                event.file = file; event.width = width; event.height = height;
+                event.commit();
+            }
+        }
+
+        void shapeFinished(String shape, Measurement measurement) {
+            if (!enabled || measurement == null) return;
+            finished(shape, measurement);
+            ShapeEvent event = (ShapeEvent) measurement.event;
+            if (event.shouldCommit()) {
+                event.shape = shape;
+                event.commit();
+            }
+        }
+
+        // Ends the event of an operation, records its latency and returns it
+        private long finished(String operation, Measurement measurement) {
+            measurement.event.end();
+            long elapsed = System.nanoTime() - measurement.start;
+            latencies.computeIfAbsent(operation, key -> new Histogram()).record(elapsed);
+            return elapsed;
+        }
+
+        public long getPixelsWritten() { return pixels_written.sum(); }
+        public long getSpansFilled() { return spans_filled.sum(); }
+        public long getBytesEncoded() { return bytes_encoded.sum(); }
+        public long getRenders() { return getLatency("render").getCount(); }
+        public long getRenderRetries() { return render_retries.sum(); }
+        public long getRenderNanos() { return getLatency("render").getTotalNanos(); }
+        public long getLastRenderNanos() { return last_render_nanos; }
+
+        /**@return the amount of evaluations per pattern type (for example "gradient" = 65536) */
+        public Map<String, Long> getPatternEvaluations() {
+            Map<String, Long> evaluations = new TreeMap<>();
+            pattern_evaluations.forEach((pattern, count) -> evaluations.put(pattern, count.sum()));
+            return evaluations;
+        }
+
+        /**
+         * @param operation "render", "readFromFile" or the name of a shape ("circle", "cross", "tree", "triangle", ...)
+         * @return the latency histogram of the operation (empty if it wasn't recorded yet)
+         */
+        public Histogram getLatency(String operation) {
+            Histogram histogram = latencies.get(operation);
+            return histogram == null ? new Histogram() : histogram;
+        }
+
+        /** Resets all recorded values */
+        public void reset() {
+            pixels_written.reset(); spans_filled.reset(); bytes_encoded.reset(); render_retries.reset();
+            pattern_evaluations.clear();
+            latencies.clear();
+            last_render_nanos = 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder summary = new StringBuilder(String.format("pixels=%d spans=%d bytes_encoded=%d render_retries=%d patterns=%s",
+                    getPixelsWritten(), getSpansFilled(), getBytesEncoded(), getRenderRetries(), getPatternEvaluations()));
+            new TreeMap<>(latencies).forEach((operation, histogram) -> summary.append("\n").append(operation).append(": ").append(histogram));
+            return summary.toString();
+        }
+
+        /** Lock-free latency histogram with power of two buckets (bucket i counts latencies below 2^i ns) */
+        public static class Histogram {
+            private final LongAdder[] buckets = new LongAdder[64];
+            private final LongAdder count = new LongAdder();
+            private final LongAdder total_nanos = new LongAdder();
+
+            Histogram() {
+                for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+            }
+
+            void record(long nanos) {
+                buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))].increment();
+                count.increment();
+                total_nanos.add(nanos);
+            }
+
+            public long getCount() { return count.sum(); }
+            public long getTotalNanos() { return total_nanos.sum(); }
+            public double getMeanNanos() { long count = getCount(); return count == 0 ? 0 : getTotalNanos() / (double) count; }
+
+            /**
+             * @param percentile between 0.0 and 1.0, for example 0.99
+             * @return the upper bound of the bucket that contains the percentile (at most twice the real value)
+             */
+            public long getPercentileNanos(double percentile) {
+                long total = 0, target = (long) Math.ceil(getCount() * percentile);
+                for (int i = 0; i < buckets.length; i++) {
+                    total += buckets[i].sum();
+                    if (total >= target && total > 0) return i == 63 ? Long.MAX_VALUE : 1L << i;
+                }
+                return 0;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("count=%d mean=%.3fms p50<%.3fms p99<%.3fms", getCount(), getMeanNanos() / 1e6,
+                        getPercentileNanos(0.5) / 1e6, getPercentileNanos(0.99) / 1e6);
+            }
+        }
+
+        @Name("bitmap.Render") @Label("Bitmap Render") @Category("Bitmap")
+        static class RenderEvent extends Event {
+            @Label("File") String file;
+            @Label("Bytes") @DataAmount long bytes;
+        }
+
+        @Name("bitmap.Read") @Label("Bitmap Read") @Category("Bitmap")
+        static class ReadEvent extends Event {
+            @Label("File") String file;
+            @Label("Width") int width;
+            @Label("Height") int height;
+        }
+
+        @Name("bitmap.Shape") @Label("Bitmap Shape") @Category("Bitmap")
+        static class ShapeEvent extends Event {
+            @Label("Shape") String shape;
+        }
+    }
+
+    /** The evaluation counts and times of the nodes of a pattern tree, created by {@link #profile(Pattern, Runnable)}. <br>
+     * The total time of a node includes its slots, the self time doesn't. Every measured evaluation also pays for
+     * two System.nanoTime() calls, so the times are mostly useful to compare the nodes with each other.
+     */
+    public static class PatternProfile {
+        private final Pattern root;
+        private final Map<Pattern, Node> nodes = new IdentityHashMap<>();
+        private long[] slot_nanos = new long[16]; // The time spent in the slots, per depth of the current call path
+        private int depth = 0;
+        long total_nanos;
+
+        /** The measurements of a single node */
+        public static class Node {
+            public final String pattern;
+            long evaluations;
+            long total_nanos;
+            long self_nanos;
+
+            Node(String pattern) { this.pattern = pattern; }
+
+            public long getEvaluations() { return evaluations; }
+            public long getTotalNanos() { return total_nanos; }
+            public long getSelfNanos() { return self_nanos; }
+        }
+
+        PatternProfile(Pattern root) {
+            this.root = root;
+        }
+
+        Color measure(Pattern pattern, int x, int y) {
+            Node node = nodes.computeIfAbsent(pattern, key -> new Node(key.pattern));
+            if (++depth == slot_nanos.length) slot_nanos = Arrays.copyOf(slot_nanos, depth * 2);
+            slot_nanos[depth] = 0;
+            long start = System.nanoTime();
+            try {
+                return pattern.evaluate(x, y);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                node.evaluations++;
+                node.total_nanos += elapsed;
+                node.self_nanos += elapsed - slot_nanos[depth];
+                slot_nanos[--depth] += elapsed;
+            }
+        }
+
+        /**@return the measurements of a node, null if it wasn't evaluated */
+        public Node getNode(Pattern pattern) { return nodes.get(pattern); }
+        /**@return the wall time of the whole operation */
+        public long getTotalNanos() { return total_nanos; }
+
+        /** Suggests optimizations for the tree, the most expensive nodes first. <br>
+         * Folding and flattening are applied by {@link Pattern#optimized()}.
+         * @return the suggestions, empty if there is nothing to improve
+         */
+        public List<String> getSuggestions() {
+            List<Map.Entry<Long, String>> suggestions = new ArrayList<>();
+            suggest(root, "root", suggestions);
+            suggestions.sort((a, b) -> Long.compare(b.getKey(), a.getKey()));
+            List<String> sorted = new ArrayList<>();
+            for (Map.Entry<Long, String> suggestion : suggestions) sorted.add(suggestion.getValue());
+            return sorted;
+        }
+
+        private void suggest(Pattern pattern, String path, List<Map.Entry<Long, String>> suggestions) {
+            Node node = nodes.get(pattern);
+            long evaluations = node == null ? 0 : node.evaluations;
+            long nanos = node == null ? 0 : node.total_nanos;
+            String cost = String.format("%d evaluations, %.3fms", evaluations, nanos / 1e6);
+
+            if (pattern.pattern.equals("normal") && (pattern.slot_1.getClass() == Color.class || !pattern.shiftPattern)) {
+                suggestions.add(Map.entry(nanos, String.format("%s: fold the normal node into its slot (%s)", path, cost)));
+            } else if (pattern.isSelector() && pattern.sameSlots(pattern.slot_1, pattern.slot_2)) {
+                suggestions.add(Map.entry(nanos, String.format("%s: both slots of the %s node are the same, replace it by the slot (%s)", path, pattern.pattern, cost)));
+            } else if (pattern.pattern.equals("gradient") && !pattern.flat_gradient && pattern.isGradientBetweenColors(pattern.slot_1) && pattern.isGradientBetweenColors(pattern.slot_2)) {
+                suggestions.add(Map.entry(nanos, String.format("%s: flatten the gradient of gradients into a single node (%s)", path, cost)));
+            }
+
+            if (pattern.slot_1.getClass() == Pattern.class) suggest((Pattern) pattern.slot_1, path + ".slot_1", suggestions);
+            if (pattern.slot_2.getClass() == Pattern.class && pattern.slot_2 != pattern.slot_1) suggest((Pattern) pattern.slot_2, path + ".slot_2", suggestions);
+        }
+
+        /**@return the tree with the measurements of every node, followed by the suggestions */
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format("%-40s %12s %12s %12s %7s%n", "pattern", "evaluations", "total ms", "self ms", "self %"));
+            Set<Pattern> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            appendTree(report, root, "", visited);
+            for (Map.Entry<Pattern, Node> entry : nodes.entrySet()) {
+                // Patterns of the operation that aren't part of the tree, for example the one of an outline
+                if (!visited.contains(entry.getKey())) appendNode(report, "(outside) " + entry.getValue().pattern, entry.getValue());
+            }
+            report.append(String.format("operation: %.3fms%n", total_nanos / 1e6));
+            for (String suggestion : getSuggestions()) report.append("suggestion: ").append(suggestion).append(System.lineSeparator());
+            return report.toString();
+        }
+
+        private void appendTree(StringBuilder report, ColorProvider color_provider, String indent, Set<Pattern> visited) {
+            if (color_provider.getClass() == Color.class) {
+                int[] color = ((Color) color_provider).color;
+                report.append(String.format("%s%n", indent + "color " + color[0] + " " + color[1] + " " + color[2]));
+                return;
+            }
+            Pattern pattern = (Pattern) color_provider;
+            visited.add(pattern);
+            Node node = nodes.get(pattern);
+            int[] period = pattern.getPeriod();
+            String label = pattern.pattern + (pattern.flat_gradient ? " (flat)" : "") + (period != null ? " (" + period[0] + "x" + period[1] + " tile)" : "");
+            appendNode(report, indent + label, node == null ? new Node(pattern.pattern) : node);
+            if (pattern.flat_gradient) visited.addAll(List.of((Pattern) pattern.slot_1, (Pattern) pattern.slot_2));
+            appendTree(report, pattern.slot_1, indent + "  ", visited);
+            if (!pattern.pattern.equals("normal") && !pattern.pattern.equals("opacity")) appendTree(report, pattern.slot_2, indent + "  ", visited);
+        }
+
+        private void appendNode(StringBuilder report, String name, Node node) {
+            double share = total_nanos == 0 ? 0 : node.self_nanos * 100.0 / total_nanos;
+            report.append(String.format("%-40s %12d %12.3f %12.3f %6.1f%%%n", name, node.evaluations, node.total_nanos / 1e6, node.self_nanos / 1e6, share));
+        }
+    }
+
     // *** Overloads ***
 
     /**@see #fillArea(int, int, int, int, ColorProvider, Outline)  */
@@ -1291,6 +3051,153 @@ public class Bitmap {
     // This class is only extended to unify method parameters as "ColorProvider"
     public abstract static class ColorProvider { }
 
+    /** The parsed form of a fast pattern (see {@link Pattern#evaluateFastPattern(String)}), immutable. <br>
+     * Parsed fast patterns are cached, so the same string is only parsed once. Equal settings are equal fast patterns,
+     * no matter whether they came from the cache.
+     */
+    static final class FastPattern {
+        private static final int MAX_CACHED = 4096; // How many parsed strings are kept (least recently used are dropped)
+        private static final Map<String, FastPattern> cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FastPattern> eldest) {
+                return size() > MAX_CACHED;
+            }
+        };
+
+        final String name;
+        final Boolean horizontal; // null if neither H nor V is set
+        final boolean shift;
+        final boolean auto;
+        final Integer from, to; // null if not set
+        final Double opacity; // null if not set
+
+        private FastPattern(String name, Boolean horizontal, boolean shift, boolean auto, Integer from, Integer to, Double opacity) {
+            this.name = name;
+            this.horizontal = horizontal;
+            this.shift = shift; this.auto = auto;
+            this.from = from; this.to = to;
+            this.opacity = opacity;
+        }
+
+        /**@throws IllegalArgumentException if from-to / opacity is malformed (such strings aren't cached) */
+        static FastPattern parse(String fast_pattern) {
+            synchronized (cache) {
+                FastPattern parsed = cache.get(fast_pattern);
+                if (parsed != null) return parsed;
+            }
+            FastPattern parsed = parseUncached(fast_pattern);
+            synchronized (cache) {
+                cache.put(fast_pattern, parsed);
+            }
+            return parsed;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof FastPattern)) return false;
+            FastPattern that = (FastPattern) other;
+            return shift == that.shift && auto == that.auto && name.equals(that.name) && Objects.equals(horizontal, that.horizontal)
+                    && Objects.equals(from, that.from) && Objects.equals(to, that.to) && Objects.equals(opacity, that.opacity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, horizontal, shift, auto, from, to, opacity);
+        }
+
+        private static FastPattern parseUncached(String fast_pattern) {
+            int pattern_length = -1;
+            Boolean horizontal = null;
+            boolean shift = false, auto = false;
+            Integer from = null, to = null;
+            Double opacity = null;
+            for (int c = 0; c < fast_pattern.length(); c++) {
+                if (fast_pattern.charAt(c) == 'H' || fast_pattern.charAt(c) == 'V') { // Horizontal / Vertical
+                    if (pattern_length == -1) pattern_length = c;
+                    horizontal = fast_pattern.charAt(c) == 'H';
+                } else if (fast_pattern.charAt(c) == '>') { // Shift pattern
+                    if (pattern_length == -1) pattern_length = c;
+                    shift = true;
+                } else if (fast_pattern.charAt(c) == '=') { // Set from and to / opacity
+                    if (pattern_length == -1) pattern_length = c;
+                    if (fast_pattern.substring(c+1).equals("auto")) auto = true;
+                    else {
+                        String[] from_to = fast_pattern.substring(c+1).split("-");
+                        try {
+                            from = Integer.parseInt(from_to[0]);
+                            to = Integer.parseInt(from_to[1]);
+                        } catch (Exception ignored) {
+                            try {
+                                opacity = Double.parseDouble(fast_pattern.substring(c+1));
+                            } catch (Exception ignored_2) {
+                                throw new IllegalArgumentException("from-to / opacity was not declared properly");
+                            }
+                        }
+                    }
+                }
+            }
+            String name = pattern_length == -1 ? fast_pattern : fast_pattern.substring(0, pattern_length);
+            return new FastPattern(name, horizontal, shift, auto, from, to, opacity);
+        }
+
+        /** Applies the settings to the pattern
+         * @return the name of the pattern
+         */
+        String applyTo(Pattern pattern) {
+            if (horizontal != null) pattern.setHorizontal(horizontal);
+            if (shift) pattern.shiftPattern = true;
+            if (auto) pattern.auto = true;
+            if (from != null) pattern.from = from;
+            if (to != null) pattern.to = to;
+            if (opacity != null) pattern.opacity = opacity;
+            return name;
+        }
+    }
+
+    /** The function of a custom pattern, evaluated without allocating: true selects the first slot, false the second one */
+    @FunctionalInterface
+    public interface CustomFunction {
+        boolean test(int x, int y, int from, int to);
+
+        /**@return the function that calls the predicate with {x, y, from, to}, null for null */
+        static CustomFunction of(Predicate<int[]> predicate) {
+            return predicate == null ? null : (x, y, from, to) -> predicate.test(new int[]{x, y, from, to});
+        }
+    }
+
+    /** Remembers the results of a pure custom function as two bitmasks (evaluated, result) over the coordinates. <br>
+     * Coordinates outside of the memo (e.g. swapped by a horizontal parent pattern) are evaluated directly.
+     */
+    static class FunctionMemo {
+        private static final long MAX_CELLS = 1L << 28; // Larger canvases aren't memoized (2 * 32MB)
+        final int columns, rows;
+        final int from, to;
+        private final long[] evaluated;
+        private final long[] results;
+
+        FunctionMemo(int columns, int rows, int from, int to) {
+            this.columns = columns; this.rows = rows;
+            this.from = from; this.to = to;
+            long cells = (long) columns * rows;
+            int words = cells > MAX_CELLS ? 0 : (int) ((cells + 63) / 64);
+            evaluated = new long[words];
+            results = new long[words];
+        }
+
+        boolean test(CustomFunction function, int x, int y) {
+            if (x < 0 || y < 0 || x >= columns || y >= rows || evaluated.length == 0) return function.test(x, y, from, to);
+            long bit = (long) y * columns + x;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((evaluated[word] & mask) != 0) return (results[word] & mask) != 0;
+            boolean result = function.test(x, y, from, to);
+            evaluated[word] |= mask;
+            if (result) results[word] |= mask;
+            return result;
+        }
+    }
+
 }
 
 
@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/** A monospace bitmap font, loaded from a BDF or PSF file or the built-in 5x7 font. <br>
+ * Every glyph is rasterized once when the font is loaded: each row is a bitmask (bit n = column n) and the runs of
+ * set bits are kept as spans, so drawing a glyph is one fill per span. Glyphs are placed in cells of
+ * {@link #cell_width} x {@link #cell_height}, without kerning.
+ * @see Bitmap#drawText(int, int, String, Bitmap.ColorProvider, int)
+ */
+public class BitmapFont {
+
+    public final int cell_width; // The advance of every glyph in pixel
+    public final int cell_height; // The distance between two lines in pixel
+
+    private final Map<Integer, Glyph> glyphs;
+    private final Glyph fallback; // Used for code points without a glyph, null to leave the cell empty
+
+    private static BitmapFont default_font;
+
+    /** A rasterized glyph */
+    static class Glyph {
+        final long[] rows; // The bitmasks of the rows, top row first, bit n = column n
+        final int[][] spans; // Per row: start and length of the runs of set bits
+
+        Glyph(long[] rows) {
+            this.rows = rows;
+            spans = new int[rows.length][];
+            for (int row = 0; row < rows.length; row++) {
+                int[] row_spans = new int[64];
+                int count = 0;
+                long mask = rows[row];
+                while (mask != 0) {
+                    int start = Long.numberOfTrailingZeros(mask);
+                    int length = Long.numberOfTrailingZeros(~(mask >>> start));
+                    row_spans[count++] = start; row_spans[count++] = length;
+                    mask &= length == 64 ? 0 : ~(((1L << length) - 1) << start);
+                }
+                spans[row] = Arrays.copyOf(row_spans, count);
+            }
+        }
+    }
+
+    private BitmapFont(int cell_width, int cell_height, Map<Integer, Glyph> glyphs) {
+        if (cell_width < 1 || cell_width > 64 || cell_height < 1) throw new IllegalArgumentException("the glyphs must be between 1 and 64 pixel wide");
+        this.cell_width = cell_width;
+        this.cell_height = cell_height;
+        this.glyphs = glyphs;
+        this.fallback = glyphs.get((int) '?');
+    }
+
+    /**@return the glyph of a code point, the fallback glyph if the font doesn't contain it */
+    Glyph glyph(int code_point) {
+        Glyph glyph = glyphs.get(code_point);
+        return glyph != null ? glyph : fallback;
+    }
+
+    /**@return whether the font contains a glyph for the code point */
+    public boolean hasGlyph(int code_point) { return glyphs.containsKey(code_point); }
+
+    /** The size of a text, lines are separated by '\n'
+     * @param text The text
+     * @param scale Every pixel of a glyph becomes scale x scale pixel
+     * @return {width, height} in pixel
+     */
+    public int[] measure(String text, int scale) {
+        int lines = 1, longest = 0, current = 0;
+        for (int i = 0; i < text.length(); ) {
+            int code_point = text.codePointAt(i);
+            i += Character.charCount(code_point);
+            if (code_point == '\n') {
+                lines++;
+                current = 0;
+            } else {
+                longest = Math.max(longest, ++current);
+            }
+        }
+        return new int[]{longest * cell_width * scale, lines * cell_height * scale};
+    }
+
+    /**@return the built-in font: 5x7 glyphs of printable ASCII in 6x8 cells */
+    public static synchronized BitmapFont defaultFont() {
+        if (default_font == null) {
+            Map<Integer, Glyph> glyphs = new HashMap<>();
+            for (int c = 0; c < DEFAULT_GLYPHS.length / 5; c++) {
+                long[] rows = new long[8];
+                // The glyphs are stored column by column, bit 0 is the top row
+                for (int column = 0; column < 5; column++) {
+                    int bits = DEFAULT_GLYPHS[c * 5 + column];
+                    for (int row = 0; row < 7; row++) {
+                        if ((bits >> row & 1) != 0) rows[row] |= 1L << column;
+                    }
+                }
+                glyphs.put(' ' + c, new Glyph(rows));
+            }
+            default_font = new BitmapFont(6, 8, glyphs);
+        }
+        return default_font;
+    }
+
+    /** Loads a font, the format is taken from the extension (.bdf, otherwise PSF)
+     * @param path The path of the font file
+     * @return the font
+     * @throws IOException if the file couldn't be read
+     * @throws IllegalArgumentException if the file isn't a valid font or its glyphs are wider than 64 pixel
+     */
+    public static BitmapFont load(Path path) throws IOException {
+        if (path.toString().toLowerCase(Locale.ROOT).endsWith(".bdf")) return loadBDF(path);
+        return loadPSF(path);
+    }
+
+    /** Loads a font in the Glyph Bitmap Distribution Format (BDF). <br>
+     * The cell is the font bounding box, every glyph is placed relative to the baseline by its BBX.
+     * @param path The path of the .bdf file
+     * @return the font
+     * @throws IOException if the file couldn't be read
+     * @throws IllegalArgumentException if the file isn't a valid BDF font
+     */
+    public static BitmapFont loadBDF(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.ISO_8859_1);
+        if (lines.isEmpty() || !lines.get(0).startsWith("STARTFONT")) throw new IllegalArgumentException("provided file isn't a BDF font");
+        int[] font_box = null; // width, height, x offset, y offset
+        Map<Integer, Glyph> glyphs = new HashMap<>();
+        int encoding = -1;
+        int[] box = null;
+        for (int i = 0; i < lines.size(); i++) {
+            String[] tokens = lines.get(i).trim().split("\\s+");
+            try {
+                switch (tokens[0]) {
+                    case "FONTBOUNDINGBOX":
+                        font_box = integers(tokens);
+                        break;
+                    case "STARTCHAR":
+                        encoding = -1; box = null;
+                        break;
+                    case "ENCODING":
+                        encoding = Integer.parseInt(tokens[1]);
+                        break;
+                    case "BBX":
+                        box = integers(tokens);
+                        break;
+                    case "BITMAP":
+                        if (font_box == null || box == null) throw new IllegalArgumentException("BITMAP before FONTBOUNDINGBOX or BBX");
+                        if (font_box[0] > 64) throw new IllegalArgumentException("the glyphs must be between 1 and 64 pixel wide");
+                        long[] rows = new long[font_box[1]];
+                        // The glyph box relative to the cell: the baseline is -y offset rows above the bottom of the cell
+                        int top = font_box[1] - (box[3] - font_box[3]) - box[1];
+                        int left = box[2] - font_box[2];
+                        for (int row = 0; row < box[1]; row++) {
+                            String hex = lines.get(++i).trim();
+                            for (int column = 0; column < box[0]; column++) {
+                                int digit = Character.digit(hex.charAt(column / 4), 16);
+                                if (digit < 0) throw new IllegalArgumentException("invalid bitmap row: " + hex);
+                                int cell_row = top + row, cell_column = left + column;
+                                if ((digit >> (3 - column % 4) & 1) != 0 && cell_row >= 0 && cell_row < rows.length && cell_column >= 0 && cell_column < font_box[0]) {
+                                    rows[cell_row] |= 1L << cell_column;
+                                }
+                            }
+                        }
+                        if (encoding >= 0) glyphs.put(encoding, new Glyph(rows));
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException | StringIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("malformed BDF font in line " + (i + 1));
+            }
+        }
+        if (font_box == null) throw new IllegalArgumentException("the BDF font has no FONTBOUNDINGBOX");
+        return new BitmapFont(font_box[0], font_box[1], glyphs);
+    }
+
+    /** Loads a PC Screen Font (PSF 1 or 2), the unicode table is used if the font has one
+     * @param path The path of the .psf file
+     * @return the font
+     * @throws IOException if the file couldn't be read
+     * @throws IllegalArgumentException if the file isn't a valid PSF font
+     */
+    public static BitmapFont loadPSF(Path path) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        int count, width, height, glyph_size, glyphs_start;
+        boolean unicode_table;
+        boolean psf1 = data.limit() >= 4 && (data.get(0) & 0xff) == 0x36 && (data.get(1) & 0xff) == 0x04;
+        if (psf1) {
+            int mode = data.get(2) & 0xff;
+            count = (mode & 1) != 0 ? 512 : 256;
+            unicode_table = (mode & 6) != 0;
+            width = 8;
+            height = data.get(3) & 0xff;
+            glyph_size = height;
+            glyphs_start = 4;
+        } else if (data.limit() >= 32 && data.getInt(0) == 0x864ab572) {
+            glyphs_start = data.getInt(8);
+            unicode_table = (data.getInt(12) & 1) != 0;
+            count = data.getInt(16);
+            glyph_size = data.getInt(20);
+            height = data.getInt(24);
+            width = data.getInt(28);
+        } else {
+            throw new IllegalArgumentException("provided file isn't a PSF font");
+        }
+        int bytes_per_row = (width + 7) / 8;
+        if (width < 1 || width > 64 || height < 1 || glyph_size < (long) bytes_per_row * height || count < 0
+                || glyphs_start < (psf1 ? 4 : 32) || glyphs_start + (long) count * glyph_size > data.limit()) {
+            throw new IllegalArgumentException("the PSF font is truncated or has an unsupported glyph size");
+        }
+
+        Glyph[] rasterized = new Glyph[count];
+        for (int index = 0; index < count; index++) {
+            long[] rows = new long[height];
+            for (int row = 0; row < height; row++) {
+                int position = glyphs_start + index * glyph_size + row * bytes_per_row;
+                for (int column = 0; column < width; column++) {
+                    // The most significant bit of a byte is the leftmost pixel
+                    if ((data.get(position + column / 8) >> (7 - column % 8) & 1) != 0) rows[row] |= 1L << column;
+                }
+            }
+            rasterized[index] = new Glyph(rows);
+        }
+
+        Map<Integer, Glyph> glyphs = new HashMap<>();
+        if (!unicode_table) {
+            for (int index = 0; index < count; index++) glyphs.put(index, rasterized[index]);
+        } else {
+            data.position(glyphs_start + count * glyph_size);
+            for (int index = 0; index < count && data.hasRemaining(); index++) {
+                for (int code_point : psf1 ? psf1Entry(data) : psf2Entry(data)) glyphs.putIfAbsent(code_point, rasterized[index]);
+            }
+        }
+        return new BitmapFont(width, height, glyphs);
+    }
+
+    // The code points of one glyph of a PSF 1 unicode table (16 bit values), sequences are skipped
+    private static List<Integer> psf1Entry(ByteBuffer data) {
+        List<Integer> code_points = new ArrayList<>();
+        boolean sequence = false;
+        while (data.remaining() >= 2) {
+            int value = data.getShort() & 0xffff;
+            if (value == 0xffff) break;
+            if (value == 0xfffe) sequence = true;
+            else if (!sequence) code_points.add(value);
+        }
+        return code_points;
+    }
+
+    // The code points of one glyph of a PSF 2 unicode table (UTF-8), sequences are skipped
+    private static List<Integer> psf2Entry(ByteBuffer data) {
+        int start = data.position();
+        while (data.hasRemaining() && (data.get() & 0xff) != 0xff) { /* Searching the end of the entry */ }
+        int end = data.position() - 1;
+        List<Integer> code_points = new ArrayList<>();
+        int sequence = start;
+        while (sequence < end && (data.get(sequence) & 0xff) != 0xfe) sequence++;
+        byte[] bytes = new byte[sequence - start];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = data.get(start + i);
+        new String(bytes, StandardCharsets.UTF_8).codePoints().forEach(code_points::add);
+        return code_points;
+    }
+
+    private static int[] integers(String[] tokens) {
+        int[] values = new int[tokens.length - 1];
+        for (int i = 1; i < tokens.length; i++) values[i - 1] = Integer.parseInt(tokens[i]);
+        return values;
+    }
+
+    // The classic 5x7 font for the code points 32 to 126, 5 columns per glyph, bit 0 is the top row
+    private static final int[] DEFAULT_GLYPHS = {
+            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x5F, 0x00, 0x00, 0x00, 0x07, 0x00, 0x07, 0x00, // ' ' ! "
+            0x14, 0x7F, 0x14, 0x7F, 0x14, 0x24, 0x2A, 0x7F, 0x2A, 0x12, 0x23, 0x13, 0x08, 0x64, 0x62, // # $ %
+            0x36, 0x49, 0x55, 0x22, 0x50, 0x00, 0x05, 0x03, 0x00, 0x00, 0x00, 0x1C, 0x22, 0x41, 0x00, // & ' (
+            0x00, 0x41, 0x22, 0x1C, 0x00, 0x08, 0x2A, 0x1C, 0x2A, 0x08, 0x08, 0x08, 0x3E, 0x08, 0x08, // ) * +
+            0x00, 0x50, 0x30, 0x00, 0x00, 0x08, 0x08, 0x08, 0x08, 0x08, 0x00, 0x60, 0x60, 0x00, 0x00, // , - .
+            0x20, 0x10, 0x08, 0x04, 0x02, 0x3E, 0x51, 0x49, 0x45, 0x3E, 0x00, 0x42, 0x7F, 0x40, 0x00, // / 0 1
+            0x42, 0x61, 0x51, 0x49, 0x46, 0x21, 0x41, 0x45, 0x4B, 0x31, 0x18, 0x14, 0x12, 0x7F, 0x10, // 2 3 4
+            0x27, 0x45, 0x45, 0x45, 0x39, 0x3C, 0x4A, 0x49, 0x49, 0x30, 0x01, 0x71, 0x09, 0x05, 0x03, // 5 6 7
+            0x36, 0x49, 0x49, 0x49, 0x36, 0x06, 0x49, 0x49, 0x29, 0x1E, 0x00, 0x36, 0x36, 0x00, 0x00, // 8 9 :
+            0x00, 0x56, 0x36, 0x00, 0x00, 0x08, 0x14, 0x22, 0x41, 0x00, 0x14, 0x14, 0x14, 0x14, 0x14, // ; < =
+            0x00, 0x41, 0x22, 0x14, 0x08, 0x02, 0x01, 0x51, 0x09, 0x06, 0x32, 0x49, 0x79, 0x41, 0x3E, // > ? @
+            0x7E, 0x11, 0x11, 0x11, 0x7E, 0x7F, 0x49, 0x49, 0x49, 0x36, 0x3E, 0x41, 0x41, 0x41, 0x22, // A B C
+            0x7F, 0x41, 0x41, 0x22, 0x1C, 0x7F, 0x49, 0x49, 0x49, 0x41, 0x7F, 0x09, 0x09, 0x01, 0x01, // D E F
+            0x3E, 0x41, 0x41, 0x51, 0x32, 0x7F, 0x08, 0x08, 0x08, 0x7F, 0x00, 0x41, 0x7F, 0x41, 0x00, // G H I
+            0x20, 0x40, 0x41, 0x3F, 0x01, 0x7F, 0x08, 0x14, 0x22, 0x41, 0x7F, 0x40, 0x40, 0x40, 0x40, // J K L
+            0x7F, 0x02, 0x04, 0x02, 0x7F, 0x7F, 0x04, 0x08, 0x10, 0x7F, 0x3E, 0x41, 0x41, 0x41, 0x3E, // M N O
+            0x7F, 0x09, 0x09, 0x09, 0x06, 0x3E, 0x41, 0x51, 0x21, 0x5E, 0x7F, 0x09, 0x19, 0x29, 0x46, // P Q R
+            0x46, 0x49, 0x49, 0x49, 0x31, 0x01, 0x01, 0x7F, 0x01, 0x01, 0x3F, 0x40, 0x40, 0x40, 0x3F, // S T U
+            0x1F, 0x20, 0x40, 0x20, 0x1F, 0x7F, 0x20, 0x18, 0x20, 0x7F, 0x63, 0x14, 0x08, 0x14, 0x63, // V W X
+            0x03, 0x04, 0x78, 0x04, 0x03, 0x61, 0x51, 0x49, 0x45, 0x43, 0x00, 0x7F, 0x41, 0x41, 0x00, // Y Z [
+            0x02, 0x04, 0x08, 0x10, 0x20, 0x00, 0x41, 0x41, 0x7F, 0x00, 0x04, 0x02, 0x01, 0x02, 0x04, // \ ] ^
+            0x40, 0x40, 0x40, 0x40, 0x40, 0x00, 0x01, 0x02, 0x04, 0x00, 0x20, 0x54, 0x54, 0x54, 0x78, // _ ` a
+            0x7F, 0x48, 0x44, 0x44, 0x38, 0x38, 0x44, 0x44, 0x44, 0x20, 0x38, 0x44, 0x44, 0x48, 0x7F, // b c d
+            0x38, 0x54, 0x54, 0x54, 0x18, 0x08, 0x7E, 0x09, 0x01, 0x02, 0x0C, 0x52, 0x52, 0x52, 0x3E, // e f g
+            0x7F, 0x08, 0x04, 0x04, 0x78, 0x00, 0x44, 0x7D, 0x40, 0x00, 0x20, 0x40, 0x44, 0x3D, 0x00, // h i j
+            0x7F, 0x10, 0x28, 0x44, 0x00, 0x00, 0x41, 0x7F, 0x40, 0x00, 0x7C, 0x04, 0x18, 0x04, 0x78, // k l m
+            0x7C, 0x08, 0x04, 0x04, 0x78, 0x38, 0x44, 0x44, 0x44, 0x38, 0x7C, 0x14, 0x14, 0x14, 0x08, // n o p
+            0x08, 0x14, 0x14, 0x18, 0x7C, 0x7C, 0x08, 0x04, 0x04, 0x08, 0x48, 0x54, 0x54, 0x54, 0x20, // q r s
+            0x04, 0x3F, 0x44, 0x40, 0x20, 0x3C, 0x40, 0x40, 0x20, 0x7C, 0x1C, 0x20, 0x40, 0x20, 0x1C, // t u v
+            0x3C, 0x40, 0x30, 0x40, 0x3C, 0x44, 0x28, 0x10, 0x28, 0x44, 0x0C, 0x50, 0x50, 0x50, 0x3C, // w x y
+            0x44, 0x64, 0x54, 0x4C, 0x44, 0x00, 0x08, 0x36, 0x41, 0x00, 0x00, 0x00, 0x7F, 0x00, 0x00, // z { |
+            0x00, 0x41, 0x36, 0x08, 0x00, 0x02, 0x01, 0x02, 0x04, 0x02                                // } ~
+    };
+}
@@ -0,0 +1,174 @@
+import java.util.stream.IntStream;
+
+/** Convolution filters over an image buffer (interleaved rgb floats, {@code buffer[(row * width + column) * 3 + channel]}). <br>
+ * Every pass reads one buffer and writes the other one (ping-pong), the rows are split into bands that are processed
+ * in parallel. Nothing is allocated per pixel. Pixel outside the image repeat the nearest border pixel.
+ */
+public class Convolution {
+
+    private static final int ROWS_PER_BAND = 16;
+
+    private Convolution() {}
+
+    /** Converts the rows of a canvas into a buffer
+     * @param rows rows[pixel[]], top row first
+     */
+    public static float[] toBuffer(int[][][] rows) {
+        int height = rows.length, width = height == 0 ? 0 : rows[0].length;
+        float[] buffer = new float[width * height * 3];
+        bands(height, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int position = row * width * 3;
+                for (int[] pixel : rows[row]) {
+                    buffer[position++] = pixel[0]; buffer[position++] = pixel[1]; buffer[position++] = pixel[2];
+                }
+            }
+        });
+        return buffer;
+    }
+
+    /** Applies a separable kernel: the rows are convolved with kernel_x, the columns of the result with kernel_y
+     * @param image The image, it contains the result afterwards
+     * @param temp A buffer of the same size for the intermediate result
+     * @param kernel_x A kernel of odd length, the center is the middle element
+     * @param kernel_y A kernel of odd length, the center is the middle element
+     */
+    public static void separable(float[] image, float[] temp, int width, int height, float[] kernel_x, float[] kernel_y) {
+        checkKernel(kernel_x.length); checkKernel(kernel_y.length);
+        int radius_x = kernel_x.length / 2, radius_y = kernel_y.length / 2;
+        // Rows: image -> temp
+        bands(height, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int row_start = row * width;
+                for (int column = 0; column < width; column++) {
+                    float r = 0, g = 0, b = 0;
+                    for (int k = -radius_x; k <= radius_x; k++) {
+                        int source = (row_start + clamp(column + k, width)) * 3;
+                        float weight = kernel_x[k + radius_x];
+                        r += image[source] * weight; g += image[source + 1] * weight; b += image[source + 2] * weight;
+                    }
+                    int target = (row_start + column) * 3;
+                    temp[target] = r; temp[target + 1] = g; temp[target + 2] = b;
+                }
+            }
+        });
+        // Columns: temp -> image
+        bands(height, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int target = row * width * 3;
+                for (int k = -radius_y; k <= radius_y; k++) {
+                    int source = clamp(row + k, height) * width * 3;
+                    float weight = kernel_y[k + radius_y];
+                    // The weighted source row is added to the whole target row at once
+                    for (int i = 0; i < width * 3; i++) {
+                        image[target + i] = (k == -radius_y ? 0 : image[target + i]) + temp[source + i] * weight;
+                    }
+                }
+            }
+        });
+    }
+
+    /** Applies a square kernel (for example 3x3 or 5x5)
+     * @param image The image
+     * @param result The buffer the result is written to (must not be the image)
+     * @param kernel kernel[row][column], odd size, the center is the middle element
+     */
+    public static void convolve(float[] image, float[] result, int width, int height, float[][] kernel) {
+        checkKernel(kernel.length);
+        int radius = kernel.length / 2;
+        for (float[] kernel_row : kernel) if (kernel_row.length != kernel.length) throw new IllegalArgumentException("the kernel must be square");
+        bands(height, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                for (int column = 0; column < width; column++) {
+                    float r = 0, g = 0, b = 0;
+                    for (int ky = -radius; ky <= radius; ky++) {
+                        int source_row = clamp(row + ky, height) * width;
+                        float[] weights = kernel[ky + radius];
+                        for (int kx = -radius; kx <= radius; kx++) {
+                            int source = (source_row + clamp(column + kx, width)) * 3;
+                            float weight = weights[kx + radius];
+                            r += image[source] * weight; g += image[source + 1] * weight; b += image[source + 2] * weight;
+                        }
+                    }
+                    int target = (row * width + column) * 3;
+                    result[target] = r; result[target + 1] = g; result[target + 2] = b;
+                }
+            }
+        });
+    }
+
+    /** Box blur with running sums, the cost per pixel doesn't depend on the radius
+     * @param image The image, it contains the result afterwards
+     * @param temp A buffer of the same size for the intermediate result
+     * @param radius The window is (2 * radius + 1) pixel wide and high
+     */
+    public static void boxBlur(float[] image, float[] temp, int width, int height, int radius) {
+        if (radius < 0) throw new IllegalArgumentException("the radius can't be negative");
+        double scale = 1.0 / (2 * radius + 1);
+        // Rows: image -> temp, the window slides along the row
+        bands(height, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int row_start = row * width * 3;
+                for (int channel = 0; channel < 3; channel++) {
+                    double sum = 0;
+                    for (int k = -radius; k <= radius; k++) sum += image[row_start + clamp(k, width) * 3 + channel];
+                    for (int column = 0; column < width; column++) {
+                        temp[row_start + column * 3 + channel] = (float) (sum * scale);
+                        sum += image[row_start + clamp(column + radius + 1, width) * 3 + channel]
+                                - image[row_start + clamp(column - radius, width) * 3 + channel];
+                    }
+                }
+            }
+        });
+        // Columns: temp -> image, every band starts its own window sums at its first row
+        bands(height, (from, to) -> {
+            int row_length = width * 3;
+            double[] sums = new double[row_length];
+            for (int k = -radius; k <= radius; k++) {
+                int source = clamp(from + k, height) * row_length;
+                for (int i = 0; i < row_length; i++) sums[i] += temp[source + i];
+            }
+            for (int row = from; row < to; row++) {
+                int target = row * row_length;
+                int entering = clamp(row + radius + 1, height) * row_length, leaving = clamp(row - radius, height) * row_length;
+                for (int i = 0; i < row_length; i++) {
+                    image[target + i] = (float) (sums[i] * scale);
+                    sums[i] += temp[entering + i] - temp[leaving + i];
+                }
+            }
+        });
+    }
+
+    /** The normalized gaussian kernel, it covers 3 sigma to each side
+     * @param sigma The standard deviation in pixel
+     */
+    public static float[] gaussianKernel(double sigma) {
+        if (sigma <= 0) throw new IllegalArgumentException("sigma must be positive");
+        int radius = (int) Math.ceil(sigma * 3);
+        float[] kernel = new float[radius * 2 + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) sum += Math.exp(-i * i / (2 * sigma * sigma));
+        for (int i = -radius; i <= radius; i++) kernel[i + radius] = (float) (Math.exp(-i * i / (2 * sigma * sigma)) / sum);
+        return kernel;
+    }
+
+    private static void checkKernel(int size) {
+        if (size % 2 == 0) throw new IllegalArgumentException("the kernel size must be odd");
+    }
+
+    private static int clamp(int index, int length) {
+        return index < 0 ? 0 : index >= length ? length - 1 : index;
+    }
+
+    /** Processes a range of rows [from, to) */
+    interface Band {
+        void process(int from, int to);
+    }
+
+    // Splits the rows into bands that are processed in parallel
+    static void bands(int height, Band band) {
+        int bands = (height + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        IntStream.range(0, bands).parallel().forEach(index ->
+                band.process(index * ROWS_PER_BAND, Math.min((index + 1) * ROWS_PER_BAND, height)));
+    }
+}
@@ -0,0 +1,425 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Renders a scene with several worker processes (JVMs) on the same machine and streams the result as a binary
+ * .ppm file (P6). <br>
+ * The scene is a list of drawing operations (fills, borders and circles with colors or pattern trees), it is
+ * serialized once and sent to every worker over a localhost socket. Only the processes launched for the render can
+ * connect: each one gets a random token on its command line and has to send it first. <br>
+ * The canvas is split into tiles of full rows, the workers request them one after another. A worker replays the
+ * scene once into a lazy bitmap, its fills stay pending and are only evaluated for the rows of the tiles it
+ * encodes (the other operations are drawn once, into the rows they touch). <br>
+ * The coordinator writes the tiles in order as soon as they are complete. If a worker fails (its process dies,
+ * the connection breaks or it doesn't answer within {@link #worker_timeout_ms}), its tile is handed to another
+ * worker. The render only fails if every worker failed. <br>
+ * For example: <br>
+ * {@code DistributedRender.Scene scene = new DistributedRender.Scene(bitmap, 20000, 20000);} <br>
+ * {@code scene.fillWin(bitmap.colors.merge(bitmap.colors.red(), bitmap.colors.blue(), "gradientH=auto"));} <br>
+ * {@code new DistributedRender().render(scene, Paths.get("poster.ppm"));}
+ */
+public class DistributedRender {
+
+    public int workers = Math.max(Runtime.getRuntime().availableProcessors() / 2, 1); // How many worker processes are launched
+    public int rows_per_tile = 64; // The height of a tile
+    public int worker_timeout_ms = 60000; // How long a worker may take to connect or to answer a tile
+    public List<String> worker_jvm_options = new ArrayList<>(); // Options of the worker JVMs, e.g. "-Xmx256m"
+    private volatile int reassigned_tiles; // Tiles of the last render that failed on a worker and were handed to another one
+    private volatile long worker_allocated_bytes; // Heap allocated by the workers of the last render that finished normally
+
+    private static final byte FILL_WIN = 0, FILL_AREA = 1, BORDER = 2, CIRCLE = 3;
+    private static final int TOKEN_LENGTH = 16; // Random bytes a worker has to send before it gets the scene
+
+    /** The drawing operations of an image, recorded to be replayed by the workers. <br>
+     * Custom and smoothed function patterns can't be sent to other processes.
+     */
+    public static class Scene {
+        public final int width;
+        public final int height;
+        public final int max_value;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream operations = new DataOutputStream(bytes);
+
+        /**
+         * @param bitmap The bitmap the colors and patterns of the scene were created with, its max_value is taken
+         * @param width The width of the image in pixel
+         * @param height The height of the image in pixel
+         */
+        public Scene(Bitmap bitmap, int width, int height) {
+            if (width < 1 || height < 1) throw new IllegalArgumentException("the scene must be at least 1x1");
+            this.width = width;
+            this.height = height;
+            this.max_value = bitmap.max_value;
+        }
+
+        /**@see Bitmap#fillWin(Bitmap.ColorProvider) */
+        public void fillWin(Bitmap.ColorProvider color_provider) {
+            record(FILL_WIN, new int[0], color_provider);
+        }
+
+        /**@see Bitmap#fillArea(int, int, int, int, Bitmap.ColorProvider) */
+        public void fillArea(int x_p1, int y_p1, int x_p2, int y_p2, Bitmap.ColorProvider color_provider) {
+            record(FILL_AREA, new int[]{x_p1, y_p1, x_p2, y_p2}, color_provider);
+        }
+
+        /**@see Bitmap#border(int, int, int, int, int, Bitmap.ColorProvider) */
+        public void border(int x_p1, int y_p1, int x_p2, int y_p2, int thickness, Bitmap.ColorProvider color_provider) {
+            record(BORDER, new int[]{x_p1, y_p1, x_p2, y_p2, thickness}, color_provider);
+        }
+
+        /**@see Bitmap.Shapes#circle(int, int, int, Bitmap.ColorProvider) */
+        public void circle(int pos_x, int pos_y, int radius, Bitmap.ColorProvider color_provider) {
+            record(CIRCLE, new int[]{pos_x, pos_y, radius}, color_provider);
+        }
+
+        // The color provider is written right away, later changes of a pattern don't change the scene
+        private void record(byte type, int[] arguments, Bitmap.ColorProvider color_provider) {
+            try {
+                ByteArrayOutputStream operation = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(operation);
+                out.writeByte(type);
+                for (int argument : arguments) out.writeInt(argument);
+                Bitmap.writeColorProvider(out, color_provider);
+                operation.writeTo(operations);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Byte arrays don't throw
+            }
+        }
+
+        /** Draws the scene onto a bitmap, the result is the same as the one of the workers */
+        public void replay(Bitmap bitmap) {
+            try {
+                replay(bitmap, bytes.toByteArray());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void replay(Bitmap bitmap, byte[] operations) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(operations));
+            while (in.available() > 0) {
+                byte type = in.readByte();
+                int[] arguments = new int[type == FILL_WIN ? 0 : type == FILL_AREA ? 4 : type == BORDER ? 5 : 3];
+                for (int i = 0; i < arguments.length; i++) arguments[i] = in.readInt();
+                Bitmap.ColorProvider color_provider = bitmap.readColorProvider(in);
+                switch (type) {
+                    case FILL_WIN: bitmap.fillWin(color_provider); break;
+                    case FILL_AREA: bitmap.fillArea(arguments[0], arguments[1], arguments[2], arguments[3], color_provider); break;
+                    case BORDER: bitmap.border(arguments[0], arguments[1], arguments[2], arguments[3], arguments[4], color_provider); break;
+                    case CIRCLE: bitmap.shapes.circle(arguments[0], arguments[1], arguments[2], color_provider); break;
+                    default: throw new IOException("unknown operation " + type);
+                }
+            }
+        }
+    }
+
+    /** Renders a scene into a file, the file is replaced in one step once it is complete
+     * @param scene The scene
+     * @param target The .ppm file
+     * @throws IOException if the file couldn't be written, no worker could be started or every worker failed
+     */
+    public void render(Scene scene, Path target) throws IOException {
+        target = target.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        try {
+            Bitmap.copyPermissions(target, temp);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                render(scene, channel);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** Renders a scene and streams it as P6 to a channel, the tiles are written in order as they are completed
+     * @param scene The scene
+     * @param channel The channel the file content is written to (not closed)
+     * @throws IOException if writing failed, no worker could be started or every worker failed
+     */
+    public void render(Scene scene, WritableByteChannel channel) throws IOException {
+        if (workers < 1 || rows_per_tile < 1) throw new IllegalArgumentException("workers and rows_per_tile must be at least 1");
+        reassigned_tiles = 0;
+        worker_allocated_bytes = 0;
+        byte[] token = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(token);
+        Coordinator coordinator = new Coordinator(scene, token);
+        List<Process> processes = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(worker_timeout_ms);
+            for (int i = 0; i < workers; i++) {
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                command.addAll(worker_jvm_options);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(DistributedRender.class.getName());
+                command.add("worker");
+                command.add(String.valueOf(server.getLocalPort()));
+                command.add(HexFormat.of().formatHex(token));
+                processes.add(new ProcessBuilder(command)
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+            }
+            Thread acceptor = new Thread(() -> coordinator.accept(server, workers), "render-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            String header = String.format("P6\n%s %s\n%s\n", scene.width, scene.height, scene.max_value);
+            channel.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+            for (int tile = 0; tile < coordinator.tiles; tile++) {
+                ByteBuffer samples = ByteBuffer.wrap(coordinator.take(tile));
+                while (samples.hasRemaining()) channel.write(samples);
+            }
+        } finally {
+            coordinator.finish();
+            for (Process process : processes) {
+                try {
+                    if (!process.waitFor(1, TimeUnit.SECONDS)) process.destroyForcibly();
+                } catch (InterruptedException e) {
+                    process.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**@return how many tiles of the last render failed on a worker (it died, broke the connection or timed out) and
+     * were handed to another one
+     */
+    public int getReassignedTiles() {
+        return reassigned_tiles;
+    }
+
+    /**@return the bytes the worker processes of the last render allocated on their heaps, summed over the workers
+     * that finished normally (a worker reports it when it is told to stop)
+     */
+    public long getWorkerAllocatedBytes() {
+        return worker_allocated_bytes;
+    }
+
+    /** The state shared between the connections of the workers and the writing thread */
+    private class Coordinator {
+        final byte[] scene_message; // The header of the scene and its operations
+        private final byte[] token;
+        final int width, height, bytes_per_sample, tiles;
+        private final ArrayDeque<Integer> pending = new ArrayDeque<>(); // Tiles that no worker is rendering
+        private final byte[][] results; // Completed tiles that weren't written yet
+        private int completed = 0;
+        private int alive = 0; // Connected workers that didn't fail (including the ones that didn't send their token yet)
+        private int authenticated = 0; // Connections that sent the right token
+        private ServerSocket server;
+        private boolean connecting = true;
+        private boolean finished = false;
+        private final List<Socket> sockets = new ArrayList<>();
+
+        Coordinator(Scene scene, byte[] token) throws IOException {
+            this.token = token;
+            width = scene.width; height = scene.height;
+            bytes_per_sample = scene.max_value > 255 ? 2 : 1;
+            tiles = (height + rows_per_tile - 1) / rows_per_tile;
+            results = new byte[tiles][];
+            for (int tile = 0; tile < tiles; tile++) pending.add(tile);
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(message);
+            out.writeInt(scene.width); out.writeInt(scene.height); out.writeInt(scene.max_value);
+            out.writeInt(scene.bytes.size());
+            scene.bytes.writeTo(out);
+            scene_message = message.toByteArray();
+        }
+
+        /** Accepts the connections of the workers, each one is served on its own thread. <br>
+         * Connections with a wrong token don't count, accepting goes on until the expected number of workers sent the
+         * right one (the server is then closed by {@link #serve(Socket, int)}) or no one connects in time.
+         */
+        void accept(ServerSocket server, int expected) {
+            synchronized (this) {
+                this.server = server;
+            }
+            try {
+                for (int i = 0; ; i++) {
+                    Socket socket = server.accept();
+                    socket.setSoTimeout(worker_timeout_ms);
+                    synchronized (this) {
+                        if (finished || authenticated >= expected) { socket.close(); return; }
+                        sockets.add(socket);
+                        alive++;
+                    }
+                    Thread thread = new Thread(() -> serve(socket, expected), "render-worker-" + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // Workers that didn't connect in time (or the end of the render) only leave fewer workers
+            } finally {
+                synchronized (this) {
+                    connecting = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        // Checks the token, then sends the scene and one tile after another to a worker, until all tiles are complete or it fails
+        private void serve(Socket socket, int expected) {
+            try (socket) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                byte[] received = new byte[TOKEN_LENGTH];
+                in.readFully(received);
+                if (!MessageDigest.isEqual(received, token)) return; // Not one of our workers, it gets nothing
+                if (authenticated(expected)) server.close(); // Every worker is there, nobody else needs to connect
+                out.write(scene_message);
+                for (int tile; (tile = next()) >= 0; ) {
+                    try {
+                        int from = tile * rows_per_tile, to = Math.min(from + rows_per_tile, height);
+                        out.writeInt(from); out.writeInt(to);
+                        out.flush();
+                        byte[] samples = new byte[(to - from) * width * 3 * bytes_per_sample];
+                        in.readFully(samples);
+                        complete(tile, samples);
+                    } catch (IOException e) {
+                        reassign(tile);
+                        throw e;
+                    }
+                }
+                out.writeInt(-1); // Nothing left to do, the worker reports its allocations and exits
+                out.flush();
+                workerFinished(in.readLong());
+            } catch (IOException e) {
+                if (!(e instanceof SocketTimeoutException) && !isFinished()) System.err.println("worker failed: " + e);
+            } finally {
+                synchronized (this) {
+                    alive--;
+                    notifyAll();
+                }
+            }
+        }
+
+        // Counts a connection with the right token, returns whether all expected workers are connected
+        private synchronized boolean authenticated(int expected) {
+            return ++authenticated >= expected;
+        }
+
+        private synchronized void workerFinished(long allocated_bytes) {
+            worker_allocated_bytes += allocated_bytes;
+        }
+
+        // The next tile for a worker, waiting while other workers render the remaining ones; -1 if there is nothing left
+        private synchronized int next() {
+            while (pending.isEmpty() && completed < tiles && !finished) waitInterruptibly();
+            return pending.isEmpty() || finished ? -1 : pending.poll();
+        }
+
+        private synchronized void complete(int tile, byte[] samples) {
+            results[tile] = samples;
+            completed++;
+            notifyAll();
+        }
+
+        private synchronized void reassign(int tile) {
+            if (!finished) reassigned_tiles++;
+            pending.addFirst(tile);
+            notifyAll();
+        }
+
+        /** Waits for a tile and hands it over for writing
+         * @throws IOException if every worker failed before the tile was complete
+         */
+        synchronized byte[] take(int tile) throws IOException {
+            while (results[tile] == null) {
+                if (alive == 0 && !connecting) throw new IOException("every worker failed, " + (tiles - completed) + " tiles weren't rendered");
+                waitInterruptibly();
+            }
+            byte[] samples = results[tile];
+            results[tile] = null;
+            return samples;
+        }
+
+        private synchronized boolean isFinished() {
+            return finished;
+        }
+
+        // Stops handing out tiles and closes every connection
+        void finish() {
+            List<Socket> open;
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+                // After a complete render the workers were already told to exit
+                open = completed < tiles ? new ArrayList<>(sockets) : List.of();
+            }
+            for (Socket socket : open) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+        }
+
+        private void waitInterruptibly() {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while rendering", e);
+            }
+        }
+    }
+
+    /** The entry point of the worker processes: {@code DistributedRender worker <port> <token>}. <br>
+     * A worker connects to the coordinator on localhost, sends the token, reads the scene and renders the requested
+     * tiles until it is told to stop. It then sends the bytes its threads allocated and exits.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !args[0].equals("worker")) {
+            System.err.println("usage: DistributedRender worker <port> <token>");
+            System.exit(2);
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]))) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            out.write(HexFormat.of().parseHex(args[2]));
+            out.flush();
+            WritableByteChannel channel = Channels.newChannel(out);
+            int width = in.readInt(), height = in.readInt(), max_value = in.readInt();
+            byte[] operations = new byte[in.readInt()];
+            in.readFully(operations);
+            // Replayed once: the fills stay pending in the lazy bitmap and only the rows of the tiles are evaluated
+            Bitmap bitmap = new Bitmap(width, height, "tile.ppm", false, true);
+            bitmap.max_value = max_value;
+            Scene.replay(bitmap, operations);
+            PPMEncoder.RowSource rows = bitmap.canvasRows(false);
+            for (int first_row; (first_row = in.readInt()) >= 0; ) {
+                int from = first_row, to = in.readInt();
+                PPMEncoder.writeBinary(channel, "", new PPMEncoder.RowSource() {
+                    public int width() { return width; }
+                    public int height() { return to - from; }
+                    public int[][][] rows(int first, int last) { return rows.rows(from + first, from + last); }
+                }, PPMEncoder.Mode.RGB, max_value);
+                out.flush();
+            }
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocated_bytes = 0;
+            for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) allocated_bytes += Math.max(allocated, 0);
+            new DataOutputStream(out).writeLong(allocated_bytes);
+            out.flush();
+        }
+    }
+}
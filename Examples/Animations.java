@@ -1,4 +1,5 @@
 import java.util.Random;
+import java.util.function.Consumer;
 
 /**
  * Class to show the ability of animation with .ppm (using ImageGlass is recommended)
@@ -12,6 +13,9 @@ public class Animations {
     static Bitmap.Outline wheelGripColor = bitmap.new Outline(2, colors.merge(colors.dark_grey(), colors.black(), "checkerboard>"));
     static Bitmap.Outline bodySideColor = bitmap.new Outline(2, colors.merge(colors.light_grey(), colors.black(), "checkerboard>"));
     static Bitmap.Pattern windowColor = colors.merge(colors.blue(), colors.white(), "gradientH=auto");;
+    static Consumer<Bitmap> frame_handler = null; // If set, receives every frame instead of render_delayed
+    static SpriteAtlas sprites = new SpriteAtlas(); // Scenes that are drawn once and then blitted
+    static Random random = new Random(); // The tree sizes and blink colors of drive(), seeded by Regression
 
     public static void appear() {
 
@@ -50,24 +54,24 @@ public class Animations {
 
     public static void drive() {
 
-        Random rand = new Random();
+        Bitmap.Color[] blinkColors = colors.list();
         double treeSize;
         int yTree;
 
         // Drive forever
         while (true) {
-            treeSize = 1 + rand.nextDouble();
-            yTree = 100 - rand.nextInt(3);
+            treeSize = 1 + random.nextDouble();
+            yTree = 100 - random.nextInt(3);
             for (int radius = 1; radius < 8; radius++) {
                 // Background
                 bitmap.fillWin(backgroundColor);
                 bitmap.lineH(100, colors.dark_grey(), 2);
                 // Tree
-                bitmap.shapes.tree(275 - 38 * radius, yTree, treeSize);
+                drawTree(275 - 38 * radius, yTree, treeSize);
                 // Blink
                 bitmap.shapes.circle(bitmap.canvas_width/2, 180, 7, colors.black());
                 bitmap.lineV(150, 180, bitmap.canvas_width/2);
-                bitmap.shapes.circle(bitmap.canvas_width/2, 180, 7-radius, colors.random());
+                bitmap.shapes.circle(bitmap.canvas_width/2, 180, 7-radius, blinkColors[random.nextInt(blinkColors.length)]);
                 // Body
                 bitmap.shapes.circle(bitmap.canvas_width / 2, 100, 59, colors.black(), bodySideColor);
                 // Wheels (again), but they do vrmm vrmm
@@ -88,7 +92,7 @@ public class Animations {
                 bitmap.changePixel(158, 41, radius % 3==0 ? backgroundColor : colors.patternFromColor(colors.dark_grey()));
                 bitmap.changePixel(159, 41, radius % 3==0 ? backgroundColor : colors.patternFromColor(colors.dark_grey()));
                 // Window
-                windowColor = colors.merge(colors.blue(), colors.white(), "gradientH=" + (100 + (radius > 4 ? radius-4:radius)) + "-140");
+                windowColor = colors.mergeCached(colors.blue(), colors.white(), "gradientH=" + (100 + (radius > 4 ? radius-4:radius)) + "-140");
                 bitmap.shapes.circle(bitmap.canvas_width / 2 + 25, 120, 20, windowColor, bodySideColor);
                 // Render
                 render_delayed(bitmap, 150);
@@ -136,7 +140,7 @@ public class Animations {
                 bitmap.shapes.circle(106, 112, 3 + (i - 78) / 8, colors.light_grey());
             }
             bitmap.fillArea(100, 27, 112, i, colors.dark_grey());
-            if (i > 31) bitmap.lineV(31, Math.min(i, 104), 106, colors.merge(colors.dark_grey(), colors.black(), "checkerboard"), 1);
+            if (i > 31) bitmap.lineV(31, Math.min(i, 104), 106, colors.mergeCached(colors.dark_grey(), colors.black(), "checkerboard"), 1);
 
             render_delayed(bitmap);
         }
@@ -146,8 +150,8 @@ public class Animations {
 
         //Stick
         for (int i = 0; i < 13; i+=2) {
-            bitmap.shapes.circle(125, 104, 1+i/2, colors.merge(colors.black(), colors.dark_grey(), "grid"));
-            bitmap.lineH(113, 113+i, 103, colors.merge(colors.merge(colors.dark_grey(), colors.black(), "gradientV=113-125"), colors.black(), "grid"), 3);
+            bitmap.shapes.circle(125, 104, 1+i/2, colors.mergeCached(colors.black(), colors.dark_grey(), "grid"));
+            bitmap.lineH(113, 113+i, 103, colors.mergeCached(colors.mergeCached(colors.dark_grey(), colors.black(), "gradientV=113-125"), colors.black(), "grid"), 3);
 
             render_delayed(bitmap);
         }
@@ -156,9 +160,10 @@ public class Animations {
 
         for (int i = 0; i < 100; i++) {
             String shift = (i%2==0?">":"");
-            bitmap.shapes.circle(125, 104, 3, colors.merge(colors.black(), i%3==0?chargeColor:colors.dark_grey(), "grid"));
-            bitmap.lineV(31, 103, 106, colors.merge(chargeColor, colors.black(), "checkerboard"+shift), 1);
-            bitmap.lineH(113, 125, 103, colors.merge(colors.merge(colors.dark_grey(), colors.black(), "gradientV=113-125"), chargeColor, "grid"+shift), 3);
+            // mergeCached returns the same pattern for the same arguments, no pattern is created inside the loop
+            bitmap.shapes.circle(125, 104, 3, colors.mergeCached(colors.black(), i%3==0?chargeColor:colors.dark_grey(), "grid"));
+            bitmap.lineV(31, 103, 106, colors.mergeCached(chargeColor, colors.black(), "checkerboard"+shift), 1);
+            bitmap.lineH(113, 125, 103, colors.mergeCached(colors.mergeCached(colors.dark_grey(), colors.black(), "gradientV=113-125"), chargeColor, "grid"+shift), 3);
             render_delayed(bitmap, 150);
         }
 
@@ -166,7 +171,21 @@ public class Animations {
         bitmap.render();
     }
 
+    // Draws the same tree as bitmap.shapes.tree(), but from a sprite that is only rendered once per size
+    // The atlas only keeps the recently used sizes, so the random sizes of drive() don't pile up
+    private static void drawTree(int x_pos, int y_pos, double size) {
+        int trunk = (int) (8 * size), radius = (int) (18 * size); // The lowest crown circle is the widest part
+        int left = trunk / 2 - radius; // The left border of the crown relative to x_pos
+        int height = Math.max((int) (22 * size) + radius, Math.max((int) (37 * size) + (int) (14 * size), (int) (50 * size) + (int) (10 * size)));
+        SpriteAtlas.Sprite tree = sprites.sprite("tree " + size, 2 * radius, height, canvas -> canvas.shapes.tree(1 - left, 1, size));
+        sprites.draw(bitmap, tree, x_pos + left, y_pos);
+    }
+
     private static void render_delayed(Bitmap bitmap, int ms) {
+        if (frame_handler != null) { // Frames are handed over instead of being rendered (used by Regression)
+            frame_handler.accept(bitmap);
+            return;
+        }
         try {
             Thread.sleep(ms);
             bitmap.render();
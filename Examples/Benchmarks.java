@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Micro benchmarks for the hot paths of the Bitmap class (drawing, patterns and file I/O). <br>
+ * Every case is warmed up first and then executed repeatedly for a fixed time. The throughput (operations per
+ * second) and the allocation rate (bytes allocated by the benchmark thread per operation) are reported. <br>
+ * Usage: {@code java Benchmarks [filter] [output file]}, for example {@code java Benchmarks fillWin results.txt} <br>
+ * The baseline is checked in at doc-files/benchmarks-baseline.txt, compare against it before and after a change and
+ * regenerate it when cases are added. The same cases run under JMH in the benchmarks/ module ({@code gradle jmh}).
+ * Note: work that is done on other threads (for example by the parallel encoders) only shows up in the throughput.
+ */
+public class Benchmarks {
+
+    private static final long WARMUP_MS = 500;
+    private static final long MEASURE_MS = 1000;
+
+    private static final String[] FORMATS = {"ppm", "pgm", "pbm", "qoi"};
+    private static final String[] PATTERNS = {
+            "grid", "checkerboard", "stripes", "gradientH=auto", "wave", "cells", "bigcells", "dotgrid", "biggrid",
+            "hugegrid", "superhugegrid", "flowergrid", "space", "dotlines"
+    };
+
+    /** A single benchmark case */
+    private static class Case {
+        final String name;
+        final Runnable operation;
+
+        Case(String name, Runnable operation) {
+            this.name = name;
+            this.operation = operation;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String filter = args.length > 0 ? args[0] : "";
+        List<Case> cases = cases();
+
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT, "%-40s %14s %16s%n", "benchmark", "ops/s", "bytes/op"));
+        for (Case c : cases) {
+            if (!c.name.contains(filter)) continue;
+            double[] result = measure(c.operation);
+            String line = String.format(Locale.ROOT, "%-40s %14.2f %16.0f%n", c.name, result[0], result[1]);
+            System.out.print(line);
+            report.append(line);
+        }
+
+        if (args.length > 1) {
+            try (FileWriter writer = new FileWriter(args[1])) {
+                writer.write(report.toString());
+            }
+        }
+        for (String format : FORMATS) {
+            new File(System.getProperty("user.dir"), "benchmark." + format).delete();
+        }
+    }
+
+    /** The operations of all cases by name, in the order of the report (used by the JMH module) */
+    public static Map<String, Runnable> operations() {
+        Map<String, Runnable> operations = new LinkedHashMap<>();
+        for (Case c : cases()) operations.put(c.name, c.operation);
+        return operations;
+    }
+
+    private static List<Case> cases() {
+        List<Case> cases = new ArrayList<>();
+
+        Bitmap bitmap = new Bitmap(256, 256, "benchmark.ppm", false);
+        Bitmap.Colors colors = bitmap.colors;
+
+        // Fills
+        cases.add(new Case("fillWin(Color)", () -> bitmap.fillWin(colors.blue())));
+        for (String pattern : PATTERNS) {
+            Bitmap.Pattern merged = colors.merge(colors.white(), colors.black(), pattern);
+            cases.add(new Case("fillWin(" + pattern + ")", () -> bitmap.fillWin(merged)));
+        }
+        Bitmap.Pattern custom = bitmap.patternBuilders.gridVariants(colors.white(), colors.black(), 7).build();
+        cases.add(new Case("fillWin(custom)", () -> bitmap.fillWin(custom)));
+        Bitmap.Pattern opacity = colors.opacity(colors.red(), 0.3);
+        cases.add(new Case("fillWin(opacity)", () -> bitmap.fillWin(opacity)));
+        Bitmap.Pattern nested = colors.merge(
+                colors.merge(colors.green(), colors.blue(), "gradientV=auto"),
+                colors.merge(colors.green(), colors.white(), "gradientH=auto"), "gradientV=auto");
+        cases.add(new Case("fillWin(nested gradients)", () -> bitmap.fillWin(nested)));
+
+        // Shapes
+        for (int radius : new int[]{4, 16, 64, 128}) {
+            cases.add(new Case("circle(r=" + radius + ", Color)", () -> bitmap.shapes.circle(128, 128, radius, colors.red())));
+        }
+        cases.add(new Case("circle(r=64, gradient)", () -> bitmap.shapes.circle(128, 128, 64, colors.merge(colors.red(), colors.blue(), "gradientH=auto"))));
+        // Mostly invisible shapes only cost their visible part
+        cases.add(new Case("circle(r=1000, mostly off-canvas)", () -> bitmap.shapes.circle(-900, 128, 1000, colors.red())));
+        cases.add(new Case("fillArea(100k x 100k, clipped, wave)", () -> bitmap.fillArea(-50000, -50000, 50000, 50000, colors.merge(colors.red(), colors.blue(), "wave"))));
+
+        // Batches of 10k small shapes
+        java.util.Random random = new java.util.Random(1);
+        int[] batch_x = random.ints(10_000, 1, 257).toArray(), batch_y = random.ints(10_000, 1, 257).toArray();
+        int[] batch_sizes = random.ints(10_000, 1, 6).toArray(), batch_colors = random.ints(10_000, 0, 3).toArray();
+        Bitmap.Color[] palette = {colors.red(), colors.green(), colors.blue()};
+        cases.add(new Case("circles(10k, batch)", () -> bitmap.shapes.circles(batch_x, batch_y, batch_sizes, batch_colors, palette)));
+        cases.add(new Case("circle(10k, one by one)", () -> {
+            for (int i = 0; i < batch_x.length; i++) bitmap.shapes.circle(batch_x[i], batch_y[i], batch_sizes[i], palette[batch_colors[i]]);
+        }));
+        cases.add(new Case("rects(10k, batch)", () -> bitmap.shapes.rects(batch_x, batch_y, batch_sizes, batch_sizes, batch_colors, palette)));
+
+        // Text
+        cases.add(new Case("drawText(12 characters)", () -> bitmap.drawText(10, 100, "CPU load 42%", colors.white())));
+        cases.add(new Case("drawText(12 characters, scale 4)", () -> bitmap.drawText(10, 100, "CPU load 42%", colors.white(), 4)));
+
+        // Flood fill of the canvas around a circle
+        Bitmap flooded = new Bitmap(256, 256, "benchmark.ppm", false);
+        flooded.shapes.circle(128, 128, 64, flooded.colors.red());
+        Bitmap.Color[] flood_colors = {flooded.colors.black(), flooded.colors.blue()};
+        int[] flood_count = {0};
+        cases.add(new Case("floodFill(256x256, Color)", () -> flooded.floodFill(1, 1, flood_colors[flood_count[0]++ & 1])));
+
+        // Filters
+        Bitmap filtered = new Bitmap(256, 256, "benchmark.ppm", false);
+        filtered.fillWin(filtered.colors.merge(filtered.colors.red(), filtered.colors.blue(), "checkerboard"));
+        for (int radius : new int[]{1, 16}) {
+            cases.add(new Case("filters.boxBlur(r=" + radius + ")", () -> filtered.filters.boxBlur(radius)));
+        }
+        cases.add(new Case("filters.gaussianBlur(sigma=2)", () -> filtered.filters.gaussianBlur(2)));
+        cases.add(new Case("filters.sharpen()", () -> filtered.filters.sharpen()));
+
+        // Resizing
+        for (Resampler.Method method : Resampler.Method.values()) {
+            cases.add(new Case("resized(256 -> 96, " + method + ")", () -> filtered.resized(96, 96, method)));
+        }
+
+        // Rendering
+        Bitmap scene = new Bitmap(512, 512, "benchmark.ppm", false);
+        Bitmap.Colors scene_colors = scene.colors;
+        scene.fillWin(scene_colors.merge(scene_colors.merge(scene_colors.green(), scene_colors.blue(), "gradientH=auto"), scene_colors.white(), "checkerboard"));
+        scene.shapes.circle(256, 256, 100, scene_colors.red());
+        for (String format : FORMATS) {
+            cases.add(new Case("render(512x512 ." + format + ")", () -> scene.render("benchmark." + format)));
+        }
+
+        Bitmap binary_scene = new Bitmap(512, 512, "benchmark.ppm", false);
+        binary_scene.blit(scene, 1, 1, 512, 512, 1, 1);
+        binary_scene.binary = true;
+        cases.add(new Case("render(512x512 binary .ppm)", () -> binary_scene.render("benchmark.ppm")));
+        // Lazy mode: the gradient is evaluated while encoding, the canvas is never materialized
+        Bitmap lazy_scene = new Bitmap(512, 512, "benchmark.ppm", false, true);
+        lazy_scene.binary = true;
+        Bitmap eager_scene = new Bitmap(512, 512, "benchmark.ppm", false);
+        eager_scene.binary = true;
+        cases.add(new Case("fillWin + fillArea + render(512x512, lazy)", () -> {
+            lazy_scene.fillWin(lazy_scene.colors.merge(lazy_scene.colors.green(), lazy_scene.colors.blue(), "gradientH=auto"));
+            lazy_scene.fillArea(100, 100, 400, 400, lazy_scene.colors.merge(lazy_scene.colors.red(), lazy_scene.colors.white(), "checkerboard"));
+            lazy_scene.render("benchmark.ppm");
+        }));
+        cases.add(new Case("fillWin + fillArea + render(512x512, eager)", () -> {
+            eager_scene.fillWin(eager_scene.colors.merge(eager_scene.colors.green(), eager_scene.colors.blue(), "gradientH=auto"));
+            eager_scene.fillArea(100, 100, 400, 400, eager_scene.colors.merge(eager_scene.colors.red(), eager_scene.colors.white(), "checkerboard"));
+            eager_scene.render("benchmark.ppm");
+        }));
+        // The same poster rendered by worker processes and by this process (the workers include their startup time)
+        Bitmap.Colors poster_colors = lazy_scene.colors;
+        DistributedRender.Scene poster = new DistributedRender.Scene(lazy_scene, 2048, 2048);
+        poster.fillWin(poster_colors.merge(poster_colors.merge(poster_colors.green(), poster_colors.blue(), "gradientH=auto"), poster_colors.white(), "wave"));
+        poster.circle(1024, 1024, 700, poster_colors.merge(poster_colors.red(), poster_colors.white(), "checkerboard"));
+        DistributedRender distributed = new DistributedRender();
+        distributed.workers = 4;
+        cases.add(new Case("render(2048x2048, 4 worker processes)", () -> {
+            try {
+                distributed.render(poster, java.nio.file.Paths.get("benchmark.ppm"));
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }));
+        cases.add(new Case("render(2048x2048, this process, lazy)", () -> {
+            Bitmap local = new Bitmap(2048, 2048, "benchmark.ppm", false, true);
+            local.binary = true;
+            poster.replay(local);
+            local.render("benchmark.ppm");
+        }));
+        for (PPMEncoder.Dither dither : PPMEncoder.Dither.values()) {
+            cases.add(new Case("encode(512x512 pbm, " + dither + ")", () -> PPMEncoder.encode(scene.getCanvas(), PPMEncoder.Mode.BLACK_WHITE, dither)));
+        }
+
+        // Reading generated images of increasing size
+        for (int size : new int[]{64, 256, 1024}) {
+            String filename = "benchmark-read-" + size + ".ppm";
+            Bitmap generated = new Bitmap(size, size, filename, false);
+            Bitmap.Colors generated_colors = generated.colors;
+            generated.fillWin(generated_colors.merge(generated_colors.red(), generated_colors.blue(), "gradientH=auto"));
+            generated.render(filename);
+            new File(System.getProperty("user.dir"), filename).deleteOnExit();
+            Bitmap reader = new Bitmap(1, 1, "benchmark.ppm", false);
+            cases.add(new Case("readFromFile(" + size + "x" + size + ")", () -> reader.readFromFile(filename, false)));
+        }
+
+        return cases;
+    }
+
+    /** Runs the operation for the warmup and the measurement time
+     * @return {operations per second, bytes allocated per operation}
+     */
+    private static double[] measure(Runnable operation) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long end = System.nanoTime() + WARMUP_MS * 1_000_000;
+        while (System.nanoTime() < end) operation.run();
+
+        long operations = 0;
+        long allocated_before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        end = start + MEASURE_MS * 1_000_000;
+        long now;
+        do {
+            operation.run();
+            operations++;
+            now = System.nanoTime();
+        } while (now < end);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocated_before;
+
+        return new double[]{operations / ((now - start) / 1e9), allocated / (double) operations};
+    }
+}
@@ -1,9 +1,12 @@
 import java.util.Random;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 public class Overview {
 
+    static Consumer<Bitmap> frame_handler = null; // If set, receives every frame of more_examples() instead of render_delayed
+
     /**
      * Short overview of the different functions in the Bitmap class <br><br>
      * Will create this image: <br>
@@ -159,6 +162,10 @@ public class Overview {
     }
 
     private static void render_delayed(Bitmap bitmap, int ms) {
+        if (frame_handler != null) { // Frames are handed over instead of being rendered (used by Regression)
+            frame_handler.accept(bitmap);
+            return;
+        }
         try {
             Thread.sleep(ms);
             bitmap.render();
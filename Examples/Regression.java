@@ -0,0 +1,298 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Pixel-exact regression check of the example scenes against the golden images in doc-files/golden. <br>
+ * Every scene of {@link Overview} and {@link Animations} (the first {@value #FRAMES} frames of an animation) is
+ * rendered and compared pixel for pixel, random frames are skipped and the random numbers of drive() are seeded.
+ * An extra scene covers the custom and smoothed function patterns, another one renders a scene with worker processes
+ * while one of them is killed, see {@link #distributed()}. For every mismatch a diff image is written to regression-diffs/
+ * (differing pixel in red on a darkened copy of the golden image). <br>
+ * Every scene also has a wall-time and an allocation budget: {@value #MARGIN} times what it measured on a 1 core
+ * OpenJDK 17. The allocations are the ones of every thread of the process (the encoders, filters and lazy fills run
+ * on the common ForkJoin pool) plus the ones of the worker processes of the distributed scene. <br>
+ * Usage (from the repository root): {@code java Regression} to check, {@code java Regression --update} to
+ * replace the golden images after an intended change. The exit code is 1 if any check failed.
+ */
+public class Regression {
+
+    private static final int FRAMES = 6;
+    private static final double MARGIN = 1.5;
+    private static long worker_allocated_bytes; // Allocated by the worker processes of the current scene
+
+    /** A scene with its budgets */
+    private static class Scene {
+        final String name;
+        final long budget_ms;
+        final long budget_bytes;
+        final SceneRenderer renderer;
+
+        /**
+         * @param measured_ms The wall time the scene took when the budgets were set
+         * @param measured_mb The megabytes the scene allocated when the budgets were set
+         */
+        Scene(String name, long measured_ms, long measured_mb, SceneRenderer renderer) {
+            this.name = name;
+            this.budget_ms = (long) (measured_ms * MARGIN);
+            this.budget_bytes = (long) (measured_mb * MARGIN) << 20;
+            this.renderer = renderer;
+        }
+    }
+
+    /** Renders a scene and returns its frames */
+    private interface SceneRenderer {
+        List<int[][][]> render(Path work_directory) throws IOException;
+    }
+
+    // Thrown by the frame handler to stop an animation once enough frames were captured
+    private static class EnoughFrames extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        EnoughFrames() { super(null, null, false, false); }
+    }
+
+    private static List<Scene> scenes() {
+        return List.of(
+                new Scene("overview", 1100, 115, work_directory -> {
+                    Overview.example();
+                    Bitmap reader = new Bitmap(1, 1, "reader.ppm", false);
+                    reader.readFromFile(work_directory.resolve("bitmap.ppm").toString(), true);
+                    return Collections.singletonList(reader.getCanvas());
+                }),
+                new Scene("appear", 40, 10, work_directory -> frames(Animations::appear)),
+                new Scene("idle", 60, 7, work_directory -> {
+                    Animations.idle();
+                    return Collections.singletonList(copy(Animations.bitmap.getCanvas()));
+                }),
+                new Scene("charge", 50, 8, work_directory -> frames(() -> Animations.charge(false))),
+                new Scene("drive", 220, 47, work_directory -> {
+                    Animations.random = new Random(42);
+                    return frames(Animations::drive);
+                }),
+                new Scene("more_examples", 800, 200, work_directory -> {
+                    List<int[][][]> frames = frames(Overview::more_examples, 7);
+                    frames.set(2, null); // Circles with random positions and colors
+                    return frames;
+                }),
+                new Scene("custom", 70, 9, work_directory -> Collections.singletonList(customPatterns())),
+                new Scene("distributed", 2200, 160, work_directory -> Collections.singletonList(distributed()))
+        );
+    }
+
+    // Custom and smoothed function patterns, which are evaluated per pixel instead of being cached like the others
+    private static int[][][] customPatterns() {
+        Bitmap bitmap = new Bitmap(300, 200, "custom.ppm", false);
+        Bitmap.Colors colors = bitmap.colors;
+        bitmap.fillWin(colors.merge(colors.white(), colors.black(), arr -> arr[0] * arr[1] % 7 == 0));
+        bitmap.fillArea(20, 20, 140, 180, bitmap.patternBuilders.custom(colors.red(), colors.white(), (x, y, from, to) -> (x + y) % 9 < 3).withHorizontal().withMemo().build());
+        bitmap.fillArea(160, 20, 280, 180, bitmap.patternBuilders.gridVariants(colors.blue(), colors.white(), 5).build());
+        bitmap.fillArea(1, 90, 300, 200, bitmap.patternBuilders.smoothedFunction(colors.black(), colors.light_blue(), arg -> (int) (Math.pow(arg[0] - 150, 2) * 0.02 + 110)).build());
+        bitmap.shapes.circle(150, 60, 40, colors.opacity(colors.merge(colors.green(), colors.black(), arr -> (arr[0] ^ arr[1]) % 5 == 0)));
+        return copy(bitmap.getCanvas());
+    }
+
+    /** Renders a scene with three worker processes and kills one of them once the first tile was written. The file
+     * must be byte for byte the one of the same scene replayed in this process, the tiles of the killed worker are
+     * rendered by the others.
+     * @throws IOException if the output differs or no tile was reassigned
+     */
+    private static int[][][] distributed() throws IOException {
+        Bitmap replayed = new Bitmap(600, 800, "distributed.ppm", false);
+        Bitmap.Colors colors = replayed.colors;
+        DistributedRender.Scene scene = new DistributedRender.Scene(replayed, 600, 800);
+        scene.fillWin(colors.merge(colors.merge(colors.green(), colors.blue(), "gradientH=auto"), colors.white(), "wave"));
+        scene.fillArea(50, 100, 550, 700, colors.merge(colors.red(), colors.white(), "checkerboard"));
+        scene.border(50, 100, 550, 700, 4, colors.opacity(colors.black(), 0.5));
+        scene.circle(300, 400, 220, colors.merge(colors.yellow(), colors.red(), "gradientV=auto"));
+        scene.circle(-50, 800, 200, colors.light_blue());
+
+        DistributedRender renderer = new DistributedRender();
+        renderer.workers = 3;
+        renderer.rows_per_tile = 8;
+        ByteArrayOutputStream distributed = new ByteArrayOutputStream();
+        WritableByteChannel file = Channels.newChannel(distributed);
+        worker_allocated_bytes = 0;
+        renderer.render(scene, new WritableByteChannel() {
+            int writes = 0;
+
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                if (++writes == 2) { // The header and the first tile are written, the workers render the others
+                    ProcessHandle.current().children().findFirst().ifPresent(ProcessHandle::destroyForcibly);
+                }
+                return file.write(source);
+            }
+
+            @Override
+            public boolean isOpen() { return true; }
+
+            @Override
+            public void close() {}
+        });
+        worker_allocated_bytes = renderer.getWorkerAllocatedBytes();
+
+        scene.replay(replayed);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PPMEncoder.writeBinary(Channels.newChannel(expected), "P6\n600 800\n255\n", replayed.getCanvas(), PPMEncoder.Mode.RGB, 255);
+        if (!Arrays.equals(expected.toByteArray(), distributed.toByteArray())) throw new IOException("the distributed render differs from the replayed scene");
+        if (renderer.getReassignedTiles() == 0) throw new IOException("the killed worker had no tile to reassign");
+        return replayed.getCanvas();
+    }
+
+    // Captures the first frames of an animation
+    private static List<int[][][]> frames(Runnable animation) {
+        return frames(animation, FRAMES);
+    }
+
+    private static List<int[][][]> frames(Runnable animation, int count) {
+        List<int[][][]> frames = new ArrayList<>();
+        Consumer<Bitmap> frame_handler = bitmap -> {
+            frames.add(copy(bitmap.getCanvas()));
+            if (frames.size() == count) throw new EnoughFrames();
+        };
+        Animations.frame_handler = frame_handler;
+        Overview.frame_handler = frame_handler;
+        try {
+            animation.run();
+        } catch (EnoughFrames ignored) {
+            // Enough frames were captured
+        } finally {
+            Animations.frame_handler = null;
+            Overview.frame_handler = null;
+        }
+        return frames;
+    }
+
+    /** The bytes the threads of this process allocated so far, by thread id. <br>
+     * Threads that ended since an earlier call are missing, the examples only start short-lived threads for renders
+     * (the common ForkJoin pool keeps its threads for a minute).
+     */
+    private static Map<Long, Long> allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> bytes = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] >= 0) bytes.put(ids[i], allocated[i]);
+        }
+        return bytes;
+    }
+
+    // The pixel arrays are never modified in place, copying the rows is enough
+    private static int[][][] copy(int[][][] canvas) {
+        int[][][] copy = new int[canvas.length][][];
+        for (int row = 0; row < canvas.length; row++) copy[row] = canvas[row].clone();
+        return copy;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean update = args.length > 0 && args[0].equals("--update");
+        Path repository = Paths.get(System.getProperty("user.dir")).toAbsolutePath();
+        Path golden_directory = repository.resolve("doc-files/golden");
+        Path diff_directory = repository.resolve("regression-diffs");
+        // The examples render into the working directory, which is redirected to keep the repository clean
+        Path work_directory = Files.createTempDirectory("regression");
+        System.setProperty("user.dir", work_directory.toString());
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Mutes the "created new file" messages
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        boolean failed = false;
+        for (Scene scene : scenes()) {
+            List<String> problems = new ArrayList<>();
+            Map<Long, Long> allocated_before = allocatedBytes(threads);
+            worker_allocated_bytes = 0;
+            long start = System.nanoTime();
+            List<int[][][]> frames;
+            try {
+                frames = scene.renderer.render(work_directory);
+            } catch (IOException | RuntimeException e) {
+                problems.add(e.getMessage());
+                frames = Collections.emptyList();
+            }
+            long elapsed_ms = (System.nanoTime() - start) / 1_000_000;
+            long allocated = worker_allocated_bytes;
+            for (Map.Entry<Long, Long> thread : allocatedBytes(threads).entrySet()) {
+                allocated += thread.getValue() - allocated_before.getOrDefault(thread.getKey(), 0L);
+            }
+
+            if (elapsed_ms > scene.budget_ms) problems.add(String.format("took %dms (budget %dms)", elapsed_ms, scene.budget_ms));
+            if (allocated > scene.budget_bytes) problems.add(String.format("allocated %dMB (budget %dMB)", allocated >> 20, scene.budget_bytes >> 20));
+
+            for (int frame = 0; frame < frames.size(); frame++) {
+                if (frames.get(frame) == null) continue; // Not deterministic
+                String name = frames.size() == 1 ? scene.name : scene.name + "-" + frame;
+                Path golden_file = golden_directory.resolve(name + ".qoi");
+                if (update) {
+                    Files.createDirectories(golden_directory);
+                    try (OutputStream file = Files.newOutputStream(golden_file)) {
+                        QOI.encode(frames.get(frame), file);
+                    }
+                    continue;
+                }
+                if (!Files.exists(golden_file)) {
+                    problems.add(name + ": golden image is missing");
+                    continue;
+                }
+                int[][][] golden;
+                try (InputStream file = Files.newInputStream(golden_file)) {
+                    golden = QOI.decode(file);
+                }
+                int differences = differences(golden, frames.get(frame));
+                if (differences != 0) {
+                    Files.createDirectories(diff_directory);
+                    writeDiff(diff_directory.resolve(name + ".ppm"), golden, frames.get(frame));
+                    problems.add(String.format("%s: %d pixel differ (see regression-diffs/%s.ppm)", name, differences, name));
+                }
+            }
+
+            failed |= !problems.isEmpty();
+            out.printf("%-14s %6dms %6dMB %s%n", scene.name, elapsed_ms, allocated >> 20,
+                    update ? "updated" : problems.isEmpty() ? "ok" : "FAILED " + String.join(", ", problems));
+        }
+        System.setOut(out);
+        if (failed) System.exit(1);
+    }
+
+    /** Counts the differing pixel of two images
+     * @return the amount of differing pixel, or the amount of pixel of the larger image if the sizes differ
+     */
+    static int differences(int[][][] expected, int[][][] actual) {
+        if (expected.length != actual.length || (expected.length > 0 && expected[0].length != actual[0].length)) {
+            return Math.max(expected.length * (expected.length == 0 ? 0 : expected[0].length), actual.length * (actual.length == 0 ? 0 : actual[0].length));
+        }
+        int differences = 0;
+        for (int row = 0; row < expected.length; row++) {
+            if (Arrays.equals(expected[row], actual[row])) continue; // Shared or identical pixel arrays
+            for (int pixel = 0; pixel < expected[row].length; pixel++) {
+                int[] e = expected[row][pixel], a = actual[row][pixel];
+                if (e != a && (e[0] != a[0] || e[1] != a[1] || e[2] != a[2])) differences++;
+            }
+        }
+        return differences;
+    }
+
+    /** Writes a diff image: the golden image darkened, the differing pixel in red */
+    static void writeDiff(Path file, int[][][] expected, int[][][] actual) throws IOException {
+        int[] red = {255, 0, 0};
+        int[][][] diff = new int[expected.length][][];
+        for (int row = 0; row < expected.length; row++) {
+            diff[row] = new int[expected[row].length][];
+            for (int pixel = 0; pixel < expected[row].length; pixel++) {
+                int[] e = expected[row][pixel];
+                boolean differs = row >= actual.length || pixel >= actual[row].length || !Arrays.equals(e, actual[row][pixel]);
+                diff[row][pixel] = differs ? red : new int[]{e[0] / 3, e[1] / 3, e[2] / 3};
+            }
+        }
+        String header = String.format("P3\n# diff\n%d %d\n255\n", diff.length == 0 ? 0 : diff[0].length, diff.length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PPMEncoder.write(channel, header, diff, PPMEncoder.Mode.RGB);
+        }
+    }
+}
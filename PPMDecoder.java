@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/** Parallel decoder for the ASCII formats of the netpbm family (P3 / .ppm, P2 / .pgm, P1 / .pbm) and the binary
+ * formats P6 and P5 (8 or 16 bit samples, their rows are decoded in parallel directly at their offsets). <br>
+ * The file is memory-mapped and the body is split into byte ranges. Every range re-synchronizes to the next token
+ * boundary, counts its samples and, after a prefix sum over the counts, parses its samples straight into their
+ * final position. The result is exactly the one of a sequential parse. <br>
+ * Comments inside the body make the token boundaries ambiguous, such files (and malformed ones, to report the
+ * error at the right position) are parsed sequentially.
+ */
+public class PPMDecoder {
+
+    private static final int MIN_CHUNK_SIZE = 1 << 18; // Smaller ranges aren't worth the scheduling
+
+    private PPMDecoder() {}
+
+    /** The decoded content of a netpbm file */
+    public static class Image {
+        public final String magic;
+        public final int width;
+        public final int height;
+        public final int max_value;
+        public final List<String> comments;
+        public final int[][][] pixels; // rows[pixel[]], top row first
+
+        Image(String magic, int width, int height, int max_value, List<String> comments, int[][][] pixels) {
+            this.magic = magic;
+            this.width = width; this.height = height;
+            this.max_value = max_value;
+            this.comments = comments;
+            this.pixels = pixels;
+        }
+    }
+
+    /** The parsed header of a netpbm file */
+    static class Header {
+        String magic;
+        int width, height;
+        int max_value = 1;
+        List<String> comments = new ArrayList<>();
+        int body_start; // The offset of the first byte after the header
+
+        int channels() { return magic.equals("P3") || magic.equals("P6") ? 3 : 1; }
+        boolean binary() { return magic.equals("P4") || magic.equals("P5") || magic.equals("P6"); }
+    }
+
+    /** Reads and decodes a netpbm file
+     * @param path The path of the file
+     * @return the decoded image, grey values (P2 / P5) are copied into all three channels, P1 is converted to black (1) and white (0)
+     * @throws IOException if the file couldn't be read
+     * @throws IllegalArgumentException if the file isn't a valid P1, P2, P3, P5 or P6 file
+     */
+    public static Image read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("files larger than 2GB are not supported");
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**@see #read(Path) */
+    public static Image decode(ByteBuffer data) {
+        Header header = readHeader(data);
+        if (header.magic.equals("P4")) throw new IllegalArgumentException("P4 files are not supported by this decoder");
+
+        int channels = header.channels();
+        long expected = (long) header.width * header.height * channels;
+        int[][][] pixels = new int[header.height][][];
+        IntStream.range(0, header.height).parallel().forEach(row -> pixels[row] = new int[header.width][3]);
+        if (header.binary()) {
+            decodeBinary(data, header, pixels);
+            return new Image(header.magic, header.width, header.height, header.max_value, header.comments, pixels);
+        }
+
+        int length = data.limit() - header.body_start;
+        int chunks = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4L, length / MIN_CHUNK_SIZE));
+        try {
+            decodeBody(data, header, pixels, chunks, expected);
+        } catch (ResyncException e) {
+            decodeBody(data, header, pixels, 1, expected);
+        }
+        return new Image(header.magic, header.width, header.height, header.max_value, header.comments, pixels);
+    }
+
+    /** Parses the header, leaving the position of the data untouched
+     * @param data The content of the file
+     * @return the header, {@code body_start} points to the first byte of the body
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    static Header readHeader(ByteBuffer data) {
+        Header header = new Header();
+        int[] position = {0};
+        header.magic = nextHeaderToken(data, position, header.comments);
+        if (!header.magic.matches("P[1-6]")) throw new IllegalArgumentException("provided file isn't in the netpbm format");
+        try {
+            header.width = Integer.parseInt(nextHeaderToken(data, position, header.comments));
+            header.height = Integer.parseInt(nextHeaderToken(data, position, header.comments));
+            if (!header.magic.equals("P1") && !header.magic.equals("P4")) {
+                header.max_value = Integer.parseInt(nextHeaderToken(data, position, header.comments));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("the provided file does not contain width, height and max value in the file header");
+        }
+        if (header.width < 0 || header.height < 0) throw new IllegalArgumentException("width and height can't be negative");
+        if (header.max_value < 1 || header.max_value > 65535) throw new IllegalArgumentException("the max value must be between 1 and 65535");
+        // Exactly one whitespace separates the header from the body
+        header.body_start = Math.min(position[0] + 1, data.limit());
+        return header;
+    }
+
+    // Every row of a binary file starts at a fixed offset, the rows are decoded in parallel
+    private static void decodeBinary(ByteBuffer data, Header header, int[][][] pixels) {
+        int channels = header.channels();
+        int bytes_per_sample = header.max_value > 255 ? 2 : 1;
+        long row_length = (long) header.width * channels * bytes_per_sample;
+        if (header.body_start + row_length * header.height > data.limit()) throw new IllegalArgumentException("the file is truncated");
+
+        IntStream.range(0, header.height).parallel().forEach(row -> {
+            int position = (int) (header.body_start + row_length * row);
+            for (int[] pixel : pixels[row]) {
+                for (int component = 0; component < channels; component++) {
+                    int value = bytes_per_sample == 1 ? data.get(position) & 0xff : data.getShort(position) & 0xffff;
+                    position += bytes_per_sample;
+                    if (channels == 3) {
+                        pixel[component] = value;
+                    } else {
+                        pixel[0] = value; pixel[1] = value; pixel[2] = value;
+                    }
+                }
+            }
+        });
+    }
+
+    // Reads the next whitespace separated token of the header, collecting the comments on the way
+    private static String nextHeaderToken(ByteBuffer data, int[] position, List<String> comments) {
+        int i = position[0];
+        while (i < data.limit()) {
+            byte b = data.get(i);
+            if (b == '#') {
+                int start = ++i;
+                while (i < data.limit() && data.get(i) != '\n' && data.get(i) != '\r') i++;
+                comments.add(ascii(data, start, i));
+            } else if (isWhitespace(b)) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        int start = i;
+        while (i < data.limit() && !isWhitespace(data.get(i)) && data.get(i) != '#') i++;
+        if (start == i) throw new IllegalArgumentException("the file header is incomplete");
+        position[0] = i;
+        return ascii(data, start, i);
+    }
+
+    private static String ascii(ByteBuffer data, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) bytes[i - from] = data.get(i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == 0x0b || b == '\f';
+    }
+
+    // Thrown by a parallel pass when it runs into a comment or anything else it can't parse on its own
+    private static class ResyncException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ResyncException() { super(null, null, false, false); }
+    }
+
+    private static void decodeBody(ByteBuffer data, Header header, int[][][] pixels, int chunks, long expected) {
+        int body_start = header.body_start;
+        int length = data.limit() - body_start;
+        boolean single_digits = header.magic.equals("P1"); // P1 samples don't need whitespace in between
+        boolean sequential = chunks == 1;
+
+        // Every chunk starts at the first token boundary at or after its nominal start
+        int[] starts = new int[chunks + 1];
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int start = body_start + (int) ((long) length * chunk / chunks);
+            if (!single_digits && chunk > 0) {
+                while (start < data.limit() && !isWhitespace(data.get(start - 1)) && !isWhitespace(data.get(start))) start++;
+            }
+            starts[chunk] = start;
+        }
+        starts[chunks] = data.limit();
+        for (int chunk = 1; chunk <= chunks; chunk++) starts[chunk] = Math.max(starts[chunk], starts[chunk - 1]);
+
+        // First pass: the amount of samples starting in each chunk
+        long[] counts = new long[chunks + 1];
+        IntStream.range(0, chunks).parallel().forEach(chunk ->
+                counts[chunk + 1] = scan(data, starts[chunk], starts[chunk + 1], single_digits, sequential, null, 0, header));
+        // Prefix sum: the index of the first sample of each chunk
+        for (int chunk = 1; chunk <= chunks; chunk++) counts[chunk] += counts[chunk - 1];
+        if (counts[chunks] != expected) {
+            throw new IllegalArgumentException(String.format("the file contains %d samples, but %d were expected", counts[chunks], expected));
+        }
+
+        // Second pass: parsing the samples into their final position
+        IntStream.range(0, chunks).parallel().forEach(chunk ->
+                scan(data, starts[chunk], starts[chunk + 1], single_digits, sequential, pixels, counts[chunk], header));
+    }
+
+    /** Walks over the tokens starting in [from, to)
+     * @param target null to only count the samples, else the canvas the samples are written to
+     * @param first_sample The index of the first sample of this range
+     * @return the amount of samples starting in the range
+     */
+    private static long scan(ByteBuffer data, int from, int to, boolean single_digits, boolean allow_comments,
+                             int[][][] target, long first_sample, Header header) {
+        int channels = header.channels();
+        boolean black_white = header.magic.equals("P1");
+        // The position of the first sample, advanced incrementally afterwards
+        long first_pixel = first_sample / channels;
+        int row = header.width == 0 ? 0 : (int) (first_pixel / header.width);
+        int column = header.width == 0 ? 0 : (int) (first_pixel % header.width);
+        int component = (int) (first_sample % channels);
+
+        long samples = 0;
+        int i = from;
+        int limit = data.limit();
+        while (i < to) {
+            byte b = data.get(i);
+            if (isWhitespace(b)) {
+                i++;
+                continue;
+            }
+            if (b == '#') {
+                if (!allow_comments) throw new ResyncException();
+                while (i < limit && data.get(i) != '\n' && data.get(i) != '\r') i++;
+                continue;
+            }
+            int value = 0;
+            if (single_digits) {
+                if (b != '0' && b != '1') throw unexpected(b, allow_comments);
+                value = b - '0';
+                i++;
+            } else {
+                // A token that starts in this range is parsed to its end, even beyond the range
+                while (i < limit && !isWhitespace(b = data.get(i))) {
+                    if (b < '0' || b > '9') throw unexpected(b, allow_comments);
+                    value = value * 10 + (b - '0');
+                    i++;
+                }
+            }
+            samples++;
+            if (target == null) continue;
+
+            int[] rgb = target[row][column];
+            if (channels == 3) {
+                rgb[component] = value;
+            } else {
+                int grey = black_white ? (value == 1 ? 0 : 255) : value;
+                rgb[0] = grey; rgb[1] = grey; rgb[2] = grey;
+            }
+            if (++component == channels) {
+                component = 0;
+                if (++column == header.width) { column = 0; row++; }
+            }
+        }
+        return samples;
+    }
+
+    private static RuntimeException unexpected(byte b, boolean sequential) {
+        if (!sequential) return new ResyncException();
+        return new IllegalArgumentException("unexpected character in the file content: " + (char) b);
+    }
+}
@@ -0,0 +1,379 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/** Parallel encoder for the ASCII formats of the netpbm family (P3 / .ppm, P2 / .pgm, P1 / .pbm) and the binary
+ * formats P6 and P5 (8 or 16 bit samples). <br>
+ * The canvas is split into blocks of rows, each block is formatted on its own worker with a lookup table of the
+ * precomputed samples ("0 " to "255 "). The encoded blocks are then written in order through a gathering write. <br>
+ * The output is byte-identical to formatting every sample with {@code StringBuilder.append(int)}. <br>
+ * The grey and black-white modes can be dithered: ordered (Bayer) dithering only depends on the position of a pixel
+ * and is encoded in parallel like the plain modes, Floyd–Steinberg diffuses the error of every pixel to its neighbours
+ * and is therefore encoded block after block, keeping only the errors of the current and the next row. <br>
+ * The rows can also be produced block by block while encoding (see {@link RowSource}), so an image doesn't have to be
+ * held in memory as a whole.
+ */
+public class PPMEncoder {
+
+    /** How the rgb values of a pixel are turned into samples */
+    public enum Mode {
+        RGB,        // P3: three samples per pixel
+        GREY,       // P2: the average of the rgb values
+        BLACK_WHITE // P1: 1 (black) if the rgb sum is at most half of the maximum, else 0 (white), ASCII only
+    }
+
+    /** How the quantization error of the grey and black-white modes is distributed (ignored for RGB) */
+    public enum Dither {
+        NONE,           // Plain thresholding (black-white) or truncation (grey)
+        BAYER,          // Ordered dithering with an 8x8 Bayer matrix
+        FLOYD_STEINBERG // Error diffusion, serpentine scan (odd rows from right to left)
+    }
+
+    // The 8x8 Bayer matrix, thresholds 0 to 63
+    private static final int[][] BAYER = new int[8][8];
+    static {
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                int value = 0;
+                // Interleaving the bits of x ^ y and y, starting with the lowest
+                for (int bit = 0; bit < 3; bit++) {
+                    value |= (((x ^ y) >> bit) & 1) << (5 - bit * 2);
+                    value |= ((y >> bit) & 1) << (4 - bit * 2);
+                }
+                BAYER[y][x] = value;
+            }
+        }
+    }
+
+    private static final byte[][] SAMPLES = new byte[256][]; // "0 " to "255 "
+    static {
+        for (int value = 0; value < SAMPLES.length; value++) {
+            SAMPLES[value] = (value + " ").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final int SAMPLES_PER_BLOCK = 1 << 16; // Roughly 256kB of text per block
+    private static final int BLOCKS_PER_WAVE = Runtime.getRuntime().availableProcessors() * 2; // Bounds the memory held at once
+
+    private PPMEncoder() {}
+
+    /** Provides the rows of an image block by block while it is encoded */
+    public interface RowSource {
+        int width();
+        int height();
+
+        /** Returns the rows from (inclusive) to (exclusive), top row first. Blocks may be requested in parallel.
+         * @return rows[pixel[]], the rows are only read
+         */
+        int[][][] rows(int from, int to);
+
+        /** The rows of an image that is held in memory
+         * @param rows rows[pixel[]], top row first
+         */
+        static RowSource of(int[][][] rows) {
+            return new RowSource() {
+                public int width() { return rows.length == 0 ? 0 : rows[0].length; }
+                public int height() { return rows.length; }
+                public int[][][] rows(int from, int to) { return Arrays.copyOfRange(rows, from, to); }
+            };
+        }
+    }
+
+    /** Encodes the rows and writes them after the header to the channel
+     * @param channel The channel the file content is written to
+     * @param header The (already formatted) header of the file
+     * @param rows A three dimensional array containing the pixel information (rows[pixel[]], top row first)
+     * @param mode How the pixel are converted into samples
+     * @throws IOException if writing to the channel failed
+     */
+    public static void write(WritableByteChannel channel, String header, int[][][] rows, Mode mode) throws IOException {
+        write(channel, header, rows, mode, Dither.NONE, 255);
+    }
+
+    /** Encodes the rows with dithering and writes them after the header to the channel
+     * @param dither How the quantization error is distributed (only used for the grey and black-white modes)
+     * @see #write(WritableByteChannel, String, int[][][], Mode)
+     */
+    public static void write(WritableByteChannel channel, String header, int[][][] rows, Mode mode, Dither dither) throws IOException {
+        write(channel, header, rows, mode, dither, 255);
+    }
+
+    /** Encodes the rows with dithering and writes them after the header to the channel
+     * @param dither How the quantization error is distributed (only used for the grey and black-white modes)
+     * @param max_value The maximum value of a channel (the maxval of the header), up to 65535
+     * @see #write(WritableByteChannel, String, int[][][], Mode)
+     */
+    public static void write(WritableByteChannel channel, String header, int[][][] rows, Mode mode, Dither dither, int max_value) throws IOException {
+        write(channel, header, RowSource.of(rows), mode, dither, max_value);
+    }
+
+    /** Encodes the rows of a source block by block and writes them after the header to the channel
+     * @param source Provides the rows, at most a few blocks of rows are requested at once
+     * @see #write(WritableByteChannel, String, int[][][], Mode, Dither, int)
+     */
+    public static void write(WritableByteChannel channel, String header, RowSource source, Mode mode, Dither dither, int max_value) throws IOException {
+        if (mode == Mode.RGB) dither = Dither.NONE;
+        writeFully(channel, new ByteBuffer[]{ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8))});
+        int height = source.height();
+        int rows_per_block = rowsPerBlock(source.width(), mode);
+        if (dither == Dither.FLOYD_STEINBERG) {
+            // Every row depends on the errors of the previous one, the blocks are encoded and written one after another
+            Diffusion diffusion = new Diffusion(source.width(), mode, max_value);
+            for (int from = 0; from < height; from += rows_per_block) {
+                int[][][] block = source.rows(from, Math.min(from + rows_per_block, height));
+                writeFully(channel, new ByteBuffer[]{encodeDithered(block, from, mode, diffusion, max_value)});
+            }
+            return;
+        }
+        Dither block_dither = dither;
+        writeBlocks(channel, height, rows_per_block, (from, to) -> {
+            int[][][] block = source.rows(from, to);
+            return block_dither == Dither.BAYER ? encodeDithered(block, from, mode, null, max_value) : encodeBlock(block, mode, max_value);
+        });
+    }
+
+    /** Encodes the rows in the binary formats (P6 / P5) and writes them after the header to the channel. <br>
+     * Samples take one byte, or two bytes (most significant byte first) if the maximum value is above 255.
+     * @param channel The channel the file content is written to
+     * @param header The (already formatted) header of the file
+     * @param rows A three dimensional array containing the pixel information (rows[pixel[]], top row first)
+     * @param mode RGB (P6) or GREY (P5)
+     * @param max_value The maximum value of a channel (the maxval of the header), up to 65535
+     * @throws IOException if writing to the channel failed
+     * @throws IllegalArgumentException if the mode is BLACK_WHITE
+     */
+    public static void writeBinary(WritableByteChannel channel, String header, int[][][] rows, Mode mode, int max_value) throws IOException {
+        writeBinary(channel, header, RowSource.of(rows), mode, max_value);
+    }
+
+    /** Encodes the rows of a source block by block in the binary formats and writes them after the header to the channel
+     * @param source Provides the rows, at most a few blocks of rows are requested at once
+     * @see #writeBinary(WritableByteChannel, String, int[][][], Mode, int)
+     */
+    public static void writeBinary(WritableByteChannel channel, String header, RowSource source, Mode mode, int max_value) throws IOException {
+        if (mode == Mode.BLACK_WHITE) throw new IllegalArgumentException("black-white images can't be written in a binary format");
+        writeFully(channel, new ByteBuffer[]{ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8))});
+        int width = source.width();
+        writeBlocks(channel, source.height(), rowsPerBlock(width, mode), (from, to) -> encodeBinaryBlock(source.rows(from, to), width, mode, max_value > 255));
+    }
+
+    /** Encodes the rows into a single array, mostly useful for small images and for comparisons
+     * @see #write(WritableByteChannel, String, int[][][], Mode)
+     */
+    public static byte[] encode(int[][][] rows, Mode mode) {
+        return encode(rows, mode, Dither.NONE);
+    }
+
+    /**@see #write(WritableByteChannel, String, int[][][], Mode, Dither) */
+    public static byte[] encode(int[][][] rows, Mode mode, Dither dither) {
+        ByteBuffer buffer = mode == Mode.RGB || dither == Dither.NONE ? encodeBlock(rows, mode, 255)
+                : encodeDithered(rows, 0, mode, dither == Dither.FLOYD_STEINBERG ? new Diffusion(rows.length == 0 ? 0 : rows[0].length, mode, 255) : null, 255);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /** Encodes the rows from (inclusive) to (exclusive) */
+    private interface BlockEncoder {
+        ByteBuffer encode(int from, int to);
+    }
+
+    private static int rowsPerBlock(int width, Mode mode) {
+        int samples_per_row = Math.max(width * (mode == Mode.RGB ? 3 : 1), 1);
+        return Math.max(SAMPLES_PER_BLOCK / samples_per_row, 1);
+    }
+
+    // Encodes the blocks in waves, the blocks of a wave are encoded in parallel but written in their original order
+    private static void writeBlocks(WritableByteChannel channel, int height, int rows_per_block, BlockEncoder encoder) throws IOException {
+        int blocks = (height + rows_per_block - 1) / rows_per_block;
+        for (int wave_start = 0; wave_start < blocks; wave_start += BLOCKS_PER_WAVE) {
+            int wave_end = Math.min(wave_start + BLOCKS_PER_WAVE, blocks);
+            ByteBuffer[] encoded = new ByteBuffer[wave_end - wave_start];
+            int first_block = wave_start;
+            IntStream.range(wave_start, wave_end).parallel().forEach(block -> encoded[block - first_block] =
+                    encoder.encode(block * rows_per_block, Math.min((block + 1) * rows_per_block, height)));
+            writeFully(channel, encoded);
+        }
+    }
+
+    // Formats a block of rows, each one terminated by a line break
+    private static ByteBuffer encodeBlock(int[][][] rows, Mode mode, int max_value) {
+        int threshold = max_value * 3 / 2;
+        // First pass: the exact size of the block, so the buffer is allocated only once
+        int size = 0;
+        for (int[][] pixels : rows) {
+            for (int[] pixel : pixels) {
+                if (mode == Mode.RGB) {
+                    size += sampleLength(pixel[0]) + sampleLength(pixel[1]) + sampleLength(pixel[2]);
+                } else if (mode == Mode.GREY) {
+                    size += sampleLength((pixel[0] + pixel[1] + pixel[2]) / 3);
+                } else {
+                    size += 2;
+                }
+            }
+            size++;
+        }
+
+        // Second pass: copying the precomputed samples
+        byte[] out = new byte[size];
+        int position = 0;
+        for (int[][] pixels : rows) {
+            for (int[] pixel : pixels) {
+                if (mode == Mode.RGB) {
+                    position = putSample(out, position, pixel[0]);
+                    position = putSample(out, position, pixel[1]);
+                    position = putSample(out, position, pixel[2]);
+                } else if (mode == Mode.GREY) {
+                    position = putSample(out, position, (pixel[0] + pixel[1] + pixel[2]) / 3);
+                } else {
+                    position = putSample(out, position, pixel[0] + pixel[1] + pixel[2] > threshold ? 0 : 1);
+                }
+            }
+            out[position++] = '\n';
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    // The binary samples of a block of rows, without any separators
+    private static ByteBuffer encodeBinaryBlock(int[][][] rows, int width, Mode mode, boolean two_bytes) {
+        int channels = mode == Mode.RGB ? 3 : 1;
+        byte[] out = new byte[rows.length * width * channels * (two_bytes ? 2 : 1)];
+        int position = 0;
+        for (int[][] pixels : rows) {
+            for (int[] pixel : pixels) {
+                for (int channel = 0; channel < channels; channel++) {
+                    int value = channels == 3 ? pixel[channel] : (pixel[0] + pixel[1] + pixel[2]) / 3;
+                    if (two_bytes) out[position++] = (byte) (value >>> 8);
+                    out[position++] = (byte) value;
+                }
+            }
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    /** Formats a block of rows of a grey or black-white image with dithering
+     * @param first_row The index of the first row of the block in the image
+     * @param diffusion The error state for Floyd–Steinberg dithering, null for Bayer dithering
+     */
+    private static ByteBuffer encodeDithered(int[][][] rows, int first_row, Mode mode, Diffusion diffusion, int max_value) {
+        int width = rows.length == 0 ? 0 : rows[0].length;
+        // The buffer is sized for the longest samples instead of measuring first
+        byte[] out = new byte[rows.length * (width * (mode == Mode.GREY ? sampleLength(max_value) : 2) + 1)];
+        int[] samples = new int[width];
+        int position = 0;
+        for (int index = 0; index < rows.length; index++) {
+            int row = first_row + index;
+            if (diffusion != null) {
+                diffusion.quantize(rows[index], row, samples);
+            } else {
+                int[] thresholds = BAYER[row & 7];
+                int[][] pixels = rows[index];
+                for (int column = 0; column < width; column++) {
+                    int[] pixel = pixels[column];
+                    int sum = pixel[0] + pixel[1] + pixel[2];
+                    // The threshold of the cell in 0 to 3 * max_value, compared against the rgb sum (or its remainder for grey)
+                    int threshold = (thresholds[column & 7] * 2 + 1) * max_value * 3 / 128;
+                    if (mode == Mode.GREY) {
+                        samples[column] = sum / 3 + ((sum % 3) * max_value > threshold ? 1 : 0);
+                    } else {
+                        samples[column] = sum > threshold ? 0 : 1;
+                    }
+                }
+            }
+            for (int sample : samples) position = putSample(out, position, sample);
+            out[position++] = '\n';
+        }
+        return ByteBuffer.wrap(out, 0, position);
+    }
+
+    /** The error state of Floyd–Steinberg dithering: the errors of the current and the next row */
+    private static class Diffusion {
+        private final Mode mode;
+        private final int max_value;
+        // Index 0 and width + 1 catch the errors that leave the image
+        private float[] current, next;
+
+        Diffusion(int width, Mode mode, int max_value) {
+            this.mode = mode;
+            this.max_value = max_value;
+            current = new float[width + 2];
+            next = new float[width + 2];
+        }
+
+        // Quantizes a row into samples and distributes the errors, odd rows are scanned from right to left
+        void quantize(int[][] pixels, int row, int[] samples) {
+            int width = pixels.length;
+            boolean reverse = (row & 1) == 1;
+            int step = reverse ? -1 : 1;
+            for (int i = 0; i < width; i++) {
+                int column = reverse ? width - 1 - i : i;
+                int[] pixel = pixels[column];
+                float value = (pixel[0] + pixel[1] + pixel[2]) / 3f + current[column + 1];
+                int quantized;
+                if (mode == Mode.GREY) {
+                    quantized = Math.min(Math.max(Math.round(value), 0), max_value);
+                    samples[column] = quantized;
+                } else {
+                    quantized = value > max_value / 2f ? max_value : 0;
+                    samples[column] = quantized == max_value ? 0 : 1;
+                }
+                float error = value - quantized;
+                current[column + 1 + step] += error * 7 / 16;
+                next[column + 1 - step] += error * 3 / 16;
+                next[column + 1] += error * 5 / 16;
+                next[column + 1 + step] += error / 16;
+            }
+            float[] temp = current;
+            current = next;
+            next = temp;
+            Arrays.fill(next, 0);
+        }
+    }
+
+    private static int sampleLength(int value) {
+        if (value >= 0 && value < SAMPLES.length) return SAMPLES[value].length;
+        int length = value < 0 ? 3 : 2; // The sign, the first digit and the separator
+        for (long rest = Math.abs((long) value) / 10; rest > 0; rest /= 10) length++;
+        return length;
+    }
+
+    // Samples above 255 (deep color) are formatted digit by digit
+    private static int putSample(byte[] out, int position, int value) {
+        if (value >= 0 && value < SAMPLES.length) {
+            byte[] sample = SAMPLES[value];
+            System.arraycopy(sample, 0, out, position, sample.length);
+            return position + sample.length;
+        }
+        if (value < 0) {
+            out[position++] = '-';
+            value = -value;
+        }
+        int end = position + sampleLength(value) - 1;
+        for (int i = end - 1; i >= position; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        out[end] = ' ';
+        return end + 1;
+    }
+
+    // A gathering write may return early, therefore it is repeated until every buffer is drained
+    private static void writeFully(WritableByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            int first = 0;
+            while (first < buffers.length) {
+                gathering.write(buffers, first, buffers.length - first);
+                while (first < buffers.length && !buffers[first].hasRemaining()) first++;
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+    }
+}
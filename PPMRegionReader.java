@@ -0,0 +1,254 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Reads rectangular regions of a netpbm file without decoding the whole file. <br>
+ * Binary files (P6 / P5) are memory-mapped and every row of the region is read directly at its offset. <br>
+ * ASCII files (P3 / P2 / P1) don't have fixed offsets. The first read builds a sparse index with the offset of
+ * every {@value #INDEX_STRIDE}th pixel of every row, which is kept in memory and cached next to the file
+ * (file name + ".rowidx"). Repeated reads then only parse the pixel of the region (and at most
+ * {@value #INDEX_STRIDE} pixel before each of its rows), no matter how wide the image is.
+ */
+public class PPMRegionReader {
+
+    static final int INDEX_STRIDE = 16;
+    private static final int INDEX_MAGIC = 0x50525832; // "PRX2", caches of the former row-only index are rebuilt
+
+    private static final Map<Path, RowIndex> indices = new ConcurrentHashMap<>();
+
+    private PPMRegionReader() {}
+
+    /** The offsets of every {@link #INDEX_STRIDE}th pixel in every row of an ASCII file, row by row */
+    private static class RowIndex {
+        final long size;
+        final long modified;
+        final int entries_per_row;
+        final int[] offsets;
+
+        RowIndex(long size, long modified, int entries_per_row, int[] offsets) {
+            this.size = size; this.modified = modified;
+            this.entries_per_row = entries_per_row;
+            this.offsets = offsets;
+        }
+
+        // The offset of the indexed pixel at or before (column, row)
+        int offset(int column, int row) {
+            return offsets[row * entries_per_row + column / INDEX_STRIDE];
+        }
+
+        boolean matches(Path path, PPMDecoder.Header header) throws IOException {
+            if (entries_per_row != (header.width + INDEX_STRIDE - 1) / INDEX_STRIDE || offsets.length != (long) entries_per_row * header.height) return false;
+            return Files.size(path) == size && Files.getLastModifiedTime(path).toMillis() == modified;
+        }
+    }
+
+    /** Reads a region of a file
+     * @param path The path of the file
+     * @param left The first column of the region (0 = left border of the image)
+     * @param top The first row of the region (0 = upper border of the image)
+     * @param width The width of the region in pixel
+     * @param height The height of the region in pixel
+     * @return the pixel of the region as rows[pixel[]], top row first
+     * @throws IOException if the file couldn't be read
+     * @throws IllegalArgumentException if the file isn't a P1, P2, P3, P5 or P6 file or the region exceeds the image
+     */
+    public static int[][][] read(Path path, int left, int top, int width, int height) throws IOException {
+        path = path.toAbsolutePath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("files larger than 2GB are not supported");
+            // Mapping is lazy, only the pages of the header and the region are actually read
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            PPMDecoder.Header header = PPMDecoder.readHeader(data);
+
+            if (width < 0 || height < 0 || left < 0 || top < 0 || left + width > header.width || top + height > header.height) {
+                throw new IllegalArgumentException(String.format("the region (%d, %d, %dx%d) exceeds the image (%dx%d)", left, top, width, height, header.width, header.height));
+            }
+            if (header.magic.equals("P4")) throw new IllegalArgumentException("P4 files are not supported");
+
+            int[][][] region = new int[height][width][3];
+            if (width == 0 || height == 0) return region; // Nothing to read, the region may start right after the last row
+            if (header.binary()) {
+                readBinary(data, header, left, top, region);
+            } else {
+                readAscii(data, header, index(path, data, header), left, top, region);
+            }
+            return region;
+        }
+    }
+
+    /** Reads the width and height of a file from its header
+     * @param path The path of the file
+     * @return {width, height}
+     * @throws IOException if the file couldn't be read
+     */
+    public static int[] dimensions(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            PPMDecoder.Header header = PPMDecoder.readHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE)));
+            return new int[]{header.width, header.height};
+        }
+    }
+
+    private static void readBinary(ByteBuffer data, PPMDecoder.Header header, int left, int top, int[][][] region) {
+        int channels = header.channels();
+        int bytes_per_sample = header.max_value > 255 ? 2 : 1;
+        long row_length = (long) header.width * channels * bytes_per_sample;
+        if (header.body_start + row_length * header.height > data.limit()) throw new IllegalArgumentException("the file is truncated");
+
+        for (int row = 0; row < region.length; row++) {
+            int position = (int) (header.body_start + row_length * (top + row) + (long) left * channels * bytes_per_sample);
+            for (int[] pixel : region[row]) {
+                for (int component = 0; component < channels; component++) {
+                    int value = bytes_per_sample == 1 ? data.get(position) & 0xff : data.getShort(position) & 0xffff;
+                    position += bytes_per_sample;
+                    if (channels == 3) {
+                        pixel[component] = value;
+                    } else {
+                        pixel[0] = value; pixel[1] = value; pixel[2] = value;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void readAscii(ByteBuffer data, PPMDecoder.Header header, RowIndex index, int left, int top, int[][][] region) {
+        int channels = header.channels();
+        boolean black_white = header.magic.equals("P1");
+
+        Tokenizer tokens = new Tokenizer(data, 0, black_white);
+        for (int row_index = 0; row_index < region.length; row_index++) {
+            int[][] row = region[row_index];
+            // Jumping to the closest indexed pixel and skipping the samples up to the region
+            tokens.position = index.offset(left, top + row_index);
+            tokens.skip((left % INDEX_STRIDE) * channels);
+            for (int[] pixel : row) {
+                for (int component = 0; component < channels; component++) {
+                    int value = tokens.next();
+                    if (channels == 3) {
+                        pixel[component] = value;
+                    } else {
+                        int grey = black_white ? (value == 1 ? 0 : 255) : value;
+                        pixel[0] = grey; pixel[1] = grey; pixel[2] = grey;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the row index of an ASCII file, from memory, from the cache file or by building it */
+    private static RowIndex index(Path path, ByteBuffer data, PPMDecoder.Header header) throws IOException {
+        RowIndex index = indices.get(path);
+        if (index != null && index.matches(path, header)) return index;
+
+        Path cache = Paths.get(path + ".rowidx");
+        index = loadIndex(cache);
+        if (index == null || !index.matches(path, header)) {
+            index = buildIndex(path, data, header);
+            try {
+                saveIndex(cache, index);
+            } catch (IOException ignored) {
+                // The directory might not be writable, the index is still kept in memory
+            }
+        }
+        indices.put(path, index);
+        return index;
+    }
+
+    private static RowIndex buildIndex(Path path, ByteBuffer data, PPMDecoder.Header header) throws IOException {
+        int channels = header.channels();
+        int entries_per_row = (header.width + INDEX_STRIDE - 1) / INDEX_STRIDE;
+        int[] offsets = new int[Math.multiplyExact(entries_per_row, header.height)];
+        Tokenizer tokens = new Tokenizer(data, header.body_start, header.magic.equals("P1"));
+        for (int entry = 0; entry < offsets.length; entry++) {
+            offsets[entry] = tokens.position;
+            // The last entry of a row covers the remaining pixel, which might be fewer than INDEX_STRIDE
+            int column = (entry % entries_per_row) * INDEX_STRIDE;
+            if (entry + 1 < offsets.length) tokens.skip((long) Math.min(INDEX_STRIDE, header.width - column) * channels);
+        }
+        return new RowIndex(Files.size(path), Files.getLastModifiedTime(path).toMillis(), entries_per_row, offsets);
+    }
+
+    private static RowIndex loadIndex(Path cache) {
+        if (!Files.exists(cache)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_STRIDE) return null;
+            long size = in.readLong();
+            long modified = in.readLong();
+            int entries_per_row = in.readInt();
+            int[] offsets = new int[in.readInt()];
+            for (int i = 0; i < offsets.length; i++) offsets[i] = in.readInt();
+            return new RowIndex(size, modified, entries_per_row, offsets);
+        } catch (IOException e) {
+            return null; // A broken cache file is simply rebuilt
+        }
+    }
+
+    private static void saveIndex(Path cache, RowIndex index) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(cache)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_STRIDE);
+            out.writeLong(index.size);
+            out.writeLong(index.modified);
+            out.writeInt(index.entries_per_row);
+            out.writeInt(index.offsets.length);
+            for (int offset : index.offsets) out.writeInt(offset);
+        }
+    }
+
+    /** Sequential reader for the samples of an ASCII body, comments are skipped */
+    private static class Tokenizer {
+        private final ByteBuffer data;
+        private final boolean single_digits;
+        int position;
+
+        Tokenizer(ByteBuffer data, int position, boolean single_digits) {
+            this.data = data;
+            this.position = position;
+            this.single_digits = single_digits;
+        }
+
+        // Moves to the first byte of the next sample
+        private void skipWhitespaceAndComments() {
+            while (position < data.limit()) {
+                byte b = data.get(position);
+                if (b == '#') {
+                    while (position < data.limit() && data.get(position) != '\n' && data.get(position) != '\r') position++;
+                } else if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == 0x0b || b == '\f') {
+                    position++;
+                } else {
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("the file contains fewer samples than declared in the header");
+        }
+
+        int next() {
+            skipWhitespaceAndComments();
+            if (single_digits) {
+                byte b = data.get(position++);
+                if (b != '0' && b != '1') throw new IllegalArgumentException("unexpected character in the file content: " + (char) b);
+                return b - '0';
+            }
+            int value = 0;
+            while (position < data.limit()) {
+                byte b = data.get(position);
+                if (b < '0' || b > '9') {
+                    if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == 0x0b || b == '\f' || b == '#') break;
+                    throw new IllegalArgumentException("unexpected character in the file content: " + (char) b);
+                }
+                value = value * 10 + (b - '0');
+                position++;
+            }
+            return value;
+        }
+
+        void skip(long samples) {
+            for (long i = 0; i < samples; i++) next();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.*;
+
+/** Encoder and decoder for the "Quite OK Image" format (<a href=https://qoiformat.org/>qoiformat.org</a>). <br>
+ * QOI is a lossless format that compresses runs, recently seen colors and small color differences. The patterns
+ * created with the Bitmap class consist mostly of those, so the files are a lot smaller than .ppm files. <br>
+ * Both directions work row by row, so a canvas never has to be held twice in memory. <br>
+ * For example: <br>
+ * {@code try (QOI.Encoder encoder = new QOI.Encoder(out, width, height)) { for (int[][] row : canvas) encoder.writeRow(row); }}
+ */
+public class QOI {
+
+    private static final int OP_INDEX = 0x00; // 00xxxxxx
+    private static final int OP_DIFF = 0x40;  // 01xxxxxx
+    private static final int OP_LUMA = 0x80;  // 10xxxxxx
+    private static final int OP_RUN = 0xc0;   // 11xxxxxx
+    private static final int OP_RGB = 0xfe;
+    private static final int OP_RGBA = 0xff;
+    private static final int MASK_2 = 0xc0;
+
+    private static final int MAGIC = 0x716f6966; // "qoif"
+    private static final byte[] END_MARKER = {0, 0, 0, 0, 0, 0, 0, 1};
+
+    private QOI() {}
+
+    // The position of a color (alpha is always 255) in the running index of recently seen colors
+    private static int hash(int r, int g, int b) {
+        return (r * 3 + g * 5 + b * 7 + 255 * 11) % 64;
+    }
+
+    /** Writes a canvas as a QOI image
+     * @param canvas A three dimensional array containing the pixel information (rows[pixel[]], top row first)
+     * @param out The stream the image is written to (not closed)
+     * @throws IOException if writing to the stream failed
+     */
+    public static void encode(int[][][] canvas, OutputStream out) throws IOException {
+        Encoder encoder = new Encoder(out, canvas.length == 0 ? 0 : canvas[0].length, canvas.length);
+        for (int[][] row : canvas) {
+            encoder.writeRow(row);
+        }
+        encoder.finish();
+    }
+
+    /** Reads a QOI image
+     * @param in The stream the image is read from (not closed)
+     * @return the pixel information as rows[pixel[]], top row first
+     * @throws IOException if reading failed or the data isn't a valid QOI image
+     */
+    public static int[][][] decode(InputStream in) throws IOException {
+        Decoder decoder = new Decoder(in);
+        int[][][] canvas = new int[decoder.height][][];
+        for (int row = 0; row < decoder.height; row++) {
+            canvas[row] = decoder.readRow();
+        }
+        return canvas;
+    }
+
+    /** Streaming QOI encoder, the rows have to be written from top to bottom */
+    public static class Encoder implements Closeable {
+        private final DataOutputStream out;
+        public final int width;
+        public final int height;
+
+        private final int[] index = new int[64]; // Packed 0xRRGGBB values of the recently seen colors
+        private final boolean[] index_used = new boolean[64];
+        private int previous = 0; // Packed color of the previous pixel
+        private int run = 0;
+        private int rows_written = 0;
+        private boolean finished = false;
+
+        /**
+         * @param out The stream the image is written to, the header is written immediately
+         * @param width The width of the image in pixel
+         * @param height The height of the image in pixel
+         * @throws IOException if writing the header failed
+         */
+        public Encoder(OutputStream out, int width, int height) throws IOException {
+            if (width < 0 || height < 0) throw new IllegalArgumentException("width and height can't be negative");
+            this.out = new DataOutputStream(out instanceof BufferedOutputStream ? out : new BufferedOutputStream(out, 1 << 16));
+            this.width = width;
+            this.height = height;
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(width);
+            this.out.writeInt(height);
+            this.out.writeByte(3); // channels: RGB
+            this.out.writeByte(0); // colorspace: sRGB with linear alpha
+        }
+
+        /** Encodes the next row
+         * @param row The pixel of the row, each one a rgb int[] between 0 and 255
+         * @throws IOException if writing failed
+         * @throws IllegalArgumentException if the row has the wrong length or all rows were already written
+         */
+        public void writeRow(int[][] row) throws IOException {
+            if (row.length != width) throw new IllegalArgumentException("row has the wrong length");
+            if (rows_written == height) throw new IllegalArgumentException("all rows were already written");
+            for (int[] pixel : row) {
+                writePixel(pixel[0], pixel[1], pixel[2]);
+            }
+            rows_written++;
+        }
+
+        private void writePixel(int r, int g, int b) throws IOException {
+            int color = r << 16 | g << 8 | b;
+            if (color == previous) {
+                run++;
+                if (run == 62) flushRun();
+                return;
+            }
+            flushRun();
+
+            int hash = hash(r, g, b);
+            if (index_used[hash] && index[hash] == color) {
+                out.writeByte(OP_INDEX | hash);
+            } else {
+                index[hash] = color; index_used[hash] = true;
+
+                int dr = r - (previous >> 16 & 0xff);
+                int dg = g - (previous >> 8 & 0xff);
+                int db = b - (previous & 0xff);
+                int dr_dg = dr - dg;
+                int db_dg = db - dg;
+                if (dr > -3 && dr < 2 && dg > -3 && dg < 2 && db > -3 && db < 2) {
+                    out.writeByte(OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                } else if (dg > -33 && dg < 32 && dr_dg > -9 && dr_dg < 8 && db_dg > -9 && db_dg < 8) {
+                    out.writeByte(OP_LUMA | (dg + 32));
+                    out.writeByte((dr_dg + 8) << 4 | (db_dg + 8));
+                } else {
+                    out.writeByte(OP_RGB);
+                    out.writeByte(r); out.writeByte(g); out.writeByte(b);
+                }
+            }
+            previous = color;
+        }
+
+        private void flushRun() throws IOException {
+            if (run > 0) {
+                out.writeByte(OP_RUN | (run - 1));
+                run = 0;
+            }
+        }
+
+        /** Writes the end marker and flushes the stream without closing it
+         * @throws IOException if writing failed
+         * @throws IllegalStateException if not all rows were written
+         */
+        public void finish() throws IOException {
+            if (finished) return;
+            if (rows_written != height) throw new IllegalStateException(String.format("only %d of %d rows were written", rows_written, height));
+            flushRun();
+            out.write(END_MARKER);
+            out.flush();
+            finished = true;
+        }
+
+        /** Finishes the image and closes the underlying stream */
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /** Streaming QOI decoder, returns the rows from top to bottom */
+    public static class Decoder implements Closeable {
+        private final DataInputStream in;
+        public final int width;
+        public final int height;
+        public final int channels;
+
+        private final int[] index = new int[64]; // Packed 0xAARRGGBB values of the recently seen colors
+        private int previous = 0xff000000;
+        private int run = 0;
+        private int rows_read = 0;
+
+        /**
+         * @param in The stream the image is read from, the header is read immediately
+         * @throws IOException if the header couldn't be read or isn't a QOI header
+         */
+        public Decoder(InputStream in) throws IOException {
+            this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 1 << 16));
+            if (this.in.readInt() != MAGIC) throw new IOException("the provided data isn't in the qoi format");
+            this.width = this.in.readInt();
+            this.height = this.in.readInt();
+            this.channels = this.in.readUnsignedByte();
+            this.in.readUnsignedByte(); // colorspace, not relevant for the canvas
+            if (width < 0 || height < 0 || (channels != 3 && channels != 4)) throw new IOException("the qoi header is corrupted");
+        }
+
+        /** Decodes the next row
+         * @return the pixel of the row, each one a rgb int[] (alpha is dropped)
+         * @throws IOException if reading failed or all rows were already read
+         */
+        public int[][] readRow() throws IOException {
+            int[][] row = new int[width][3];
+            readRow(row);
+            return row;
+        }
+
+        /** Decodes the next row into an existing array
+         * @param row The array the pixel are written to, each one a rgb int[]
+         * @throws IOException if reading failed or all rows were already read
+         */
+        public void readRow(int[][] row) throws IOException {
+            if (rows_read == height) throw new IOException("all rows were already read");
+            for (int[] pixel : row) {
+                int color = readPixel();
+                pixel[0] = color >> 16 & 0xff;
+                pixel[1] = color >> 8 & 0xff;
+                pixel[2] = color & 0xff;
+            }
+            rows_read++;
+        }
+
+        private int readPixel() throws IOException {
+            if (run > 0) {
+                run--;
+                return previous;
+            }
+            int b1 = in.readUnsignedByte();
+            int r = previous >> 16 & 0xff, g = previous >> 8 & 0xff, b = previous & 0xff, a = previous >>> 24;
+            if (b1 == OP_RGB) {
+                r = in.readUnsignedByte(); g = in.readUnsignedByte(); b = in.readUnsignedByte();
+            } else if (b1 == OP_RGBA) {
+                r = in.readUnsignedByte(); g = in.readUnsignedByte(); b = in.readUnsignedByte(); a = in.readUnsignedByte();
+            } else if ((b1 & MASK_2) == OP_INDEX) {
+                previous = index[b1];
+                return previous;
+            } else if ((b1 & MASK_2) == OP_DIFF) {
+                r = (r + (b1 >> 4 & 0x03) - 2) & 0xff;
+                g = (g + (b1 >> 2 & 0x03) - 2) & 0xff;
+                b = (b + (b1 & 0x03) - 2) & 0xff;
+            } else if ((b1 & MASK_2) == OP_LUMA) {
+                int b2 = in.readUnsignedByte();
+                int dg = (b1 & 0x3f) - 32;
+                r = (r + dg - 8 + (b2 >> 4 & 0x0f)) & 0xff;
+                g = (g + dg) & 0xff;
+                b = (b + dg - 8 + (b2 & 0x0f)) & 0xff;
+            } else { // OP_RUN
+                run = b1 & 0x3f;
+                return previous;
+            }
+            previous = a << 24 | r << 16 | g << 8 | b;
+            index[(r * 3 + g * 5 + b * 7 + a * 11) % 64] = previous;
+            return previous;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/** Resizes images given as rows[pixel[]] (top row first). <br>
+ * Bilinear and Lanczos resampling are separable: the rows are resampled into a float buffer first, then the columns
+ * are resampled directly into the rows of the result. The weights are computed once per column and row of the result
+ * (when shrinking, the filter is widened so every source pixel contributes). The bands of rows are processed in
+ * parallel, the only allocations are the intermediate buffer and the result. Equal neighbouring pixel share one array.
+ */
+public class Resampler {
+
+    /** How the pixel of the result are computed */
+    public enum Method {
+        NEAREST,  // The closest source pixel, the pixel arrays are shared with the source
+        BILINEAR, // Linear interpolation (a tent filter)
+        LANCZOS   // Lanczos3, sharper than bilinear, may overshoot slightly at hard edges
+    }
+
+    private Resampler() {}
+
+    /** Resizes an image
+     * @param rows The image as rows[pixel[]], top row first
+     * @param width The width of the result
+     * @param height The height of the result
+     * @param method The resampling method
+     * @param max_value The maximum value of a channel, the results are clamped to it
+     * @return the resized image as rows[pixel[]], top row first
+     * @throws IllegalArgumentException if the image or the size of the result is empty
+     */
+    public static int[][][] resize(int[][][] rows, int width, int height, Method method, int max_value) {
+        int source_height = rows.length, source_width = source_height == 0 ? 0 : rows[0].length;
+        if (source_width == 0 || source_height == 0) throw new IllegalArgumentException("the image is empty");
+        if (width < 1 || height < 1) throw new IllegalArgumentException("the result must be at least 1x1");
+
+        int[][][] result = new int[height][width][];
+        if (method == Method.NEAREST) {
+            int[] columns = new int[width];
+            for (int column = 0; column < width; column++) columns[column] = (int) ((column + 0.5) * source_width / width);
+            Convolution.bands(height, (from, to) -> {
+                for (int row = from; row < to; row++) {
+                    int[][] source = rows[(int) ((row + 0.5) * source_height / height)];
+                    for (int column = 0; column < width; column++) result[row][column] = source[columns[column]];
+                }
+            });
+            return result;
+        }
+
+        Weights horizontal = new Weights(source_width, width, method);
+        Weights vertical = new Weights(source_height, height, method);
+        // Rows: source -> temp (width x source_height)
+        float[] temp = new float[width * source_height * 3];
+        Convolution.bands(source_height, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int[][] source = rows[row];
+                int position = row * width * 3;
+                for (int column = 0; column < width; column++) {
+                    float r = 0, g = 0, b = 0;
+                    for (int k = column * horizontal.span; k < (column + 1) * horizontal.span; k++) {
+                        int[] pixel = source[horizontal.indices[k]];
+                        float weight = horizontal.weights[k];
+                        r += pixel[0] * weight; g += pixel[1] * weight; b += pixel[2] * weight;
+                    }
+                    temp[position++] = r; temp[position++] = g; temp[position++] = b;
+                }
+            }
+        });
+        // Columns: temp -> result
+        Convolution.bands(height, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int[] previous = null;
+                for (int column = 0; column < width; column++) {
+                    float r = 0, g = 0, b = 0;
+                    for (int k = row * vertical.span; k < (row + 1) * vertical.span; k++) {
+                        int position = (vertical.indices[k] * width + column) * 3;
+                        float weight = vertical.weights[k];
+                        r += temp[position] * weight; g += temp[position + 1] * weight; b += temp[position + 2] * weight;
+                    }
+                    previous = result[row][column] = pixel(previous, channel(r, max_value), channel(g, max_value), channel(b, max_value));
+                }
+            }
+        });
+        return result;
+    }
+
+    /**@see #resize(int[][][], int, int, Method, int) */
+    public static int[][][] resize(int[][][] rows, int width, int height, Method method) {
+        return resize(rows, width, height, method, 255);
+    }
+
+    /** Halves the size of an image, every pixel of the result is the average of a 2x2 block. <br>
+     * An odd last column or row is averaged with itself.
+     * @param rows The image as rows[pixel[]], top row first
+     * @return the image with (width + 1) / 2 x (height + 1) / 2 pixel
+     */
+    public static int[][][] halve(int[][][] rows) {
+        int source_height = rows.length, source_width = source_height == 0 ? 0 : rows[0].length;
+        int width = (source_width + 1) / 2, height = (source_height + 1) / 2;
+        int[][][] result = new int[height][width][];
+        Convolution.bands(height, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int[][] upper = rows[row * 2], lower = rows[Math.min(row * 2 + 1, source_height - 1)];
+                int[] previous = null;
+                for (int column = 0; column < width; column++) {
+                    int left = column * 2, right = Math.min(column * 2 + 1, source_width - 1);
+                    int[] a = upper[left], b = upper[right], c = lower[left], d = lower[right];
+                    if (a == b && a == c && a == d) { // A flat block keeps its pixel array
+                        previous = result[row][column] = a;
+                        continue;
+                    }
+                    previous = result[row][column] = pixel(previous,
+                            (a[0] + b[0] + c[0] + d[0] + 2) / 4, (a[1] + b[1] + c[1] + d[1] + 2) / 4, (a[2] + b[2] + c[2] + d[2] + 2) / 4);
+                }
+            }
+        });
+        return result;
+    }
+
+    // The previous pixel if it has the same color, else a new one
+    private static int[] pixel(int[] previous, int r, int g, int b) {
+        if (previous != null && previous[0] == r && previous[1] == g && previous[2] == b) return previous;
+        return new int[]{r, g, b};
+    }
+
+    private static int channel(float value, int max_value) {
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : Math.min(rounded, max_value);
+    }
+
+    /** The source indices and weights of every pixel of the result along one axis */
+    private static class Weights {
+        final int span; // The amount of source pixel per result pixel
+        final int[] indices; // indices[pixel * span + k], clamped to the source
+        final float[] weights; // weights[pixel * span + k], normalized per pixel
+
+        Weights(int source, int target, Method method) {
+            double scale = source / (double) target;
+            double filter_scale = Math.max(1, scale); // Shrinking widens the filter
+            double support = (method == Method.LANCZOS ? 3 : 1) * filter_scale;
+            span = (int) Math.ceil(support) * 2 + 1;
+            indices = new int[target * span];
+            weights = new float[target * span];
+            for (int pixel = 0; pixel < target; pixel++) {
+                double center = (pixel + 0.5) * scale - 0.5;
+                int first = (int) Math.floor(center) - span / 2 + 1;
+                double sum = 0;
+                for (int k = 0; k < span; k++) {
+                    double weight = kernel((first + k - center) / filter_scale, method);
+                    indices[pixel * span + k] = Math.min(Math.max(first + k, 0), source - 1);
+                    weights[pixel * span + k] = (float) weight;
+                    sum += weight;
+                }
+                for (int k = 0; k < span; k++) weights[pixel * span + k] /= sum;
+            }
+        }
+
+        private static double kernel(double x, Method method) {
+            x = Math.abs(x);
+            if (method == Method.BILINEAR) return Math.max(0, 1 - x);
+            if (x < 1e-9) return 1;
+            if (x >= 3) return 0;
+            double pi_x = Math.PI * x;
+            return 3 * Math.sin(pi_x) * Math.sin(pi_x / 3) / (pi_x * pi_x);
+        }
+    }
+}
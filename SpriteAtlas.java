@@ -0,0 +1,232 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+/** Pre-rendered sprites that are blitted instead of being drawn from primitives every frame. <br>
+ * A sprite is a sub-scene that is drawn once onto a scratch bitmap and then packed into one of the pages of the
+ * atlas (bitmaps of {@link #page_width} x {@link #page_height}, filled shelf by shelf). The pixel that the scene
+ * didn't draw are transparent, optionally also the ones of a color key. Every row of a sprite is stored as runs of
+ * opaque pixel, so drawing a sprite is one System.arraycopy per run. <br>
+ * At most {@link #max_sprites} sprites are kept, the least recently used are dropped. A page is released (or, if
+ * it is the last one, packed again from the top) once none of its sprites is left. <br>
+ * Example: <br>
+ * {@code SpriteAtlas.Sprite tree = atlas.sprite("tree", 40, 70, canvas -> canvas.shapes.tree(17, 1, 1.0));} <br>
+ * {@code atlas.draw(bitmap, tree, 120, 100);}
+ */
+public class SpriteAtlas {
+
+    // Marks the pixel the scene didn't draw, pixel arrays are never modified in place, so the identity is enough
+    private static final int[] UNTOUCHED = new int[3];
+
+    public final int page_width;
+    public final int page_height;
+    public int max_sprites = 256; // How many sprites are kept (least recently used are dropped)
+
+    private final List<Bitmap> pages = new ArrayList<>();
+    private final Map<String, Sprite> sprites = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Sprite> eldest) {
+            if (size() <= max_sprites) return false;
+            release(eldest.getValue());
+            return true;
+        }
+    };
+    private final Map<Bitmap, Integer> page_sprites = new IdentityHashMap<>(); // How many kept sprites each page holds
+    // The packing position in the last page: shelves of sprites from the top to the bottom
+    private int shelf_x, shelf_y, shelf_height;
+
+    private long hits, misses;
+
+    /** A sprite in the atlas */
+    public static class Sprite {
+        public final String key;
+        public final int width;
+        public final int height;
+
+        final Bitmap page;
+        final int page_column, page_row; // The upper left corner in the page (0-based column and row index)
+        final int[][] runs; // Per row (top row first): start and length of the opaque runs
+        boolean dropped; // Its place in the page may be taken by another sprite
+
+        private Sprite(String key, int width, int height, Bitmap page, int page_column, int page_row, int[][] runs) {
+            this.key = key;
+            this.width = width; this.height = height;
+            this.page = page;
+            this.page_column = page_column; this.page_row = page_row;
+            this.runs = runs;
+        }
+    }
+
+    /** Creates a new atlas, the pages are created when they are needed
+     * @param page_width The width of a page, sprites can't be wider
+     * @param page_height The height of a page, sprites can't be higher
+     */
+    public SpriteAtlas(int page_width, int page_height) {
+        if (page_width < 1 || page_height < 1) throw new IllegalArgumentException("the page must be at least 1x1");
+        this.page_width = page_width;
+        this.page_height = page_height;
+    }
+
+    /**@see #SpriteAtlas(int, int) */
+    public SpriteAtlas() { this(512, 512); }
+
+    /** Returns the sprite of the key, it is rendered the first time
+     * @param key Identifies the sprite, everything the scene depends on (for example a size) has to be part of it
+     * @param width The width of the sprite
+     * @param height The height of the sprite
+     * @param scene Draws the sprite onto a bitmap of width x height (the lower left pixel is (1, 1))
+     * @param color_key Pixel of this color are transparent as well, null for none
+     * @return the sprite
+     * @throws IllegalArgumentException if the sprite is larger than a page
+     */
+    public Sprite sprite(String key, int width, int height, Consumer<Bitmap> scene, Bitmap.Color color_key) {
+        Sprite sprite = sprites.get(key);
+        if (sprite != null) {
+            hits++;
+            return sprite;
+        }
+        misses++;
+        if (width < 1 || height < 1 || width > page_width || height > page_height) {
+            throw new IllegalArgumentException(String.format("a sprite must be between 1x1 and %dx%d", page_width, page_height));
+        }
+
+        Bitmap scratch = new Bitmap(width, height, "sprite.ppm", false);
+        for (int[][] row : scratch.getCanvas()) Arrays.fill(row, UNTOUCHED);
+        scene.accept(scratch);
+
+        // The runs of opaque pixel
+        int[][][] canvas_rows = scratch.getCanvas();
+        int[][] runs = new int[height][];
+        for (int row = 0; row < height; row++) {
+            int[] row_runs = new int[width + 1];
+            int count = 0;
+            for (int column = 0; column < width; ) {
+                while (column < width && transparent(canvas_rows[row][column], color_key)) column++;
+                int start = column;
+                while (column < width && !transparent(canvas_rows[row][column], color_key)) column++;
+                if (column > start) { row_runs[count++] = start; row_runs[count++] = column - start; }
+            }
+            runs[row] = Arrays.copyOf(row_runs, count);
+        }
+
+        place(width, height);
+        Bitmap page = pages.get(pages.size() - 1);
+        page.blit(scratch, 1, 1, width, height, shelf_x + 1, page_height - shelf_y - height + 1);
+        sprite = new Sprite(key, width, height, page, shelf_x, shelf_y, runs);
+        shelf_x += width;
+        page_sprites.merge(page, 1, Integer::sum);
+        sprites.put(key, sprite);
+        return sprite;
+    }
+
+    // Called when a sprite is dropped, releases its page once the page is empty
+    private void release(Sprite sprite) {
+        sprite.dropped = true;
+        if (page_sprites.merge(sprite.page, -1, Integer::sum) > 0) return;
+        page_sprites.remove(sprite.page);
+        if (sprite.page == pages.get(pages.size() - 1)) {
+            shelf_x = 0; shelf_y = 0; shelf_height = 0;
+        } else {
+            pages.remove(sprite.page);
+        }
+    }
+
+    /**@see #sprite(String, int, int, Consumer, Bitmap.Color) */
+    public Sprite sprite(String key, int width, int height, Consumer<Bitmap> scene) {
+        return sprite(key, width, height, scene, null);
+    }
+
+    /**@return the sprite of the key, null if it wasn't rendered yet or was dropped (not counted as miss) */
+    public Sprite get(String key) {
+        Sprite sprite = sprites.get(key);
+        if (sprite != null) hits++;
+        return sprite;
+    }
+
+    private static boolean transparent(int[] pixel, Bitmap.Color color_key) {
+        return pixel == UNTOUCHED || color_key != null && Arrays.equals(pixel, color_key.color);
+    }
+
+    // Moves the packing position to a free place of width x height, opening a new shelf or page if necessary
+    private void place(int width, int height) {
+        if (!pages.isEmpty() && shelf_x + width > page_width) {
+            shelf_y += shelf_height;
+            shelf_x = 0; shelf_height = 0;
+        }
+        if (pages.isEmpty() || shelf_y + height > page_height) {
+            pages.add(new Bitmap(page_width, page_height, "atlas.ppm", false));
+            shelf_x = 0; shelf_y = 0; shelf_height = 0;
+        }
+        shelf_height = Math.max(shelf_height, height);
+    }
+
+    /** Draws a sprite onto a bitmap, parts outside the canvas or the clip of the bitmap are skipped
+     * @param target The bitmap the sprite is drawn onto
+     * @param sprite The sprite
+     * @param x The x-coordinate of the left column of the sprite
+     * @param y The y-coordinate of the bottom row of the sprite
+     * @throws IllegalArgumentException if the sprite was dropped from the atlas (request it again through sprite)
+     */
+    public void draw(Bitmap target, Sprite sprite, int x, int y) {
+        if (sprite.dropped) throw new IllegalArgumentException("the sprite " + sprite.key + " was dropped from the atlas");
+        // The rows of the sprite (top row = 0) that are inside the canvas and the clip
+        int clip_left = target.clipLeft(), clip_right = target.clipRight();
+        int first_row = Math.max(0, y + sprite.height - 1 - target.clipTop());
+        int last_row = Math.min(sprite.height - 1, y + sprite.height - 1 - target.clipBottom());
+        int[][][] page = sprite.page.getCanvas();
+        for (int row = first_row; row <= last_row; row++) {
+            int[] row_runs = sprite.runs[row];
+            if (row_runs.length == 0) continue;
+            int[][] source = page[sprite.page_row + row];
+            int[][] destination = null;
+            for (int run = 0; run < row_runs.length; run += 2) {
+                // The run clipped to the canvas and the clip (x-coordinates)
+                int first = Math.max(x + row_runs[run], clip_left);
+                int last = Math.min(x + row_runs[run] + row_runs[run + 1] - 1, clip_right);
+                if (first > last) continue;
+                if (destination == null) destination = target.editableRow(target.canvas_height - (y + sprite.height - 1 - row));
+                System.arraycopy(source, sprite.page_column + first - x, destination, first - 1, last - first + 1);
+                target.metrics.pixelsWritten(last - first + 1);
+            }
+        }
+    }
+
+    /**@see #draw(Bitmap, Sprite, int, int)
+     * @throws IllegalArgumentException if there is no sprite with the key
+     */
+    public void draw(Bitmap target, String key, int x, int y) {
+        Sprite sprite = get(key);
+        if (sprite == null) throw new IllegalArgumentException("there is no sprite " + key);
+        draw(target, sprite, x, y);
+    }
+
+    /** Removes every sprite and page, the statistics are kept */
+    public void clear() {
+        for (Sprite sprite : sprites.values()) sprite.dropped = true;
+        sprites.clear();
+        pages.clear();
+        page_sprites.clear();
+        shelf_x = 0; shelf_y = 0; shelf_height = 0;
+    }
+
+    /**@return the pages of the atlas, for example to render them for debugging */
+    public List<Bitmap> getPages() { return Collections.unmodifiableList(pages); }
+    public int getSpriteCount() { return sprites.size(); }
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public double getHitRate() { return hits + misses == 0 ? 0 : hits / (double) (hits + misses); }
+
+    /**@return an estimate of the memory used by the pages and the runs in bytes (pixel arrays are shared and not counted) */
+    public long getMemoryBytes() {
+        long bytes = (long) pages.size() * page_height * (16 + 4L * page_width);
+        for (Sprite sprite : sprites.values()) {
+            for (int[] row_runs : sprite.runs) bytes += 16 + 4L * row_runs.length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sprites=%d pages=%d memory=%dkB hits=%d misses=%d hit_rate=%.1f%%",
+                getSpriteCount(), pages.size(), getMemoryBytes() / 1024, hits, misses, getHitRate() * 100);
+    }
+}
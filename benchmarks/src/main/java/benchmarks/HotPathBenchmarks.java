@@ -0,0 +1,107 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH version of the benchmark cases of Examples/Benchmarks.java, one JMH benchmark per case. <br>
+ * JMH can't generate benchmarks for classes in the default package, and classes in a package can't reference the
+ * Bitmap classes, so the cases are looked up by name through {@code Benchmarks.operations()} once per trial and the
+ * measured method only runs the operation. <br>
+ * Usage: {@code gradle jmh} runs all cases with the gc profiler (allocation rate), {@code gradle jmh -Pcases=fillWin(Color)}
+ * only the given ones (separated by commas). The baseline is doc-files/benchmarks-jmh-baseline.txt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class HotPathBenchmarks {
+
+    // Every case of Benchmarks.operations(), checked in setup() so new cases aren't forgotten here
+    @Param({
+            "fillWin(Color)",
+            "fillWin(grid)",
+            "fillWin(checkerboard)",
+            "fillWin(stripes)",
+            "fillWin(gradientH=auto)",
+            "fillWin(wave)",
+            "fillWin(cells)",
+            "fillWin(bigcells)",
+            "fillWin(dotgrid)",
+            "fillWin(biggrid)",
+            "fillWin(hugegrid)",
+            "fillWin(superhugegrid)",
+            "fillWin(flowergrid)",
+            "fillWin(space)",
+            "fillWin(dotlines)",
+            "fillWin(custom)",
+            "fillWin(opacity)",
+            "fillWin(nested gradients)",
+            "circle(r=4, Color)",
+            "circle(r=16, Color)",
+            "circle(r=64, Color)",
+            "circle(r=128, Color)",
+            "circle(r=64, gradient)",
+            "circle(r=1000, mostly off-canvas)",
+            "fillArea(100k x 100k, clipped, wave)",
+            "circles(10k, batch)",
+            "circle(10k, one by one)",
+            "rects(10k, batch)",
+            "drawText(12 characters)",
+            "drawText(12 characters, scale 4)",
+            "floodFill(256x256, Color)",
+            "filters.boxBlur(r=1)",
+            "filters.boxBlur(r=16)",
+            "filters.gaussianBlur(sigma=2)",
+            "filters.sharpen()",
+            "resized(256 -> 96, NEAREST)",
+            "resized(256 -> 96, BILINEAR)",
+            "resized(256 -> 96, LANCZOS)",
+            "render(512x512 .ppm)",
+            "render(512x512 .pgm)",
+            "render(512x512 .pbm)",
+            "render(512x512 .qoi)",
+            "render(512x512 binary .ppm)",
+            "fillWin + fillArea + render(512x512, lazy)",
+            "fillWin + fillArea + render(512x512, eager)",
+            "render(2048x2048, 4 worker processes)",
+            "render(2048x2048, this process, lazy)",
+            "encode(512x512 pbm, NONE)",
+            "encode(512x512 pbm, BAYER)",
+            "encode(512x512 pbm, FLOYD_STEINBERG)",
+            "readFromFile(64x64)",
+            "readFromFile(256x256)",
+            "readFromFile(1024x1024)"
+    })
+    public String name;
+
+    private Runnable operation;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws ReflectiveOperationException {
+        Map<String, Runnable> operations = (Map<String, Runnable>) Class.forName("Benchmarks").getMethod("operations").invoke(null);
+        Field field = HotPathBenchmarks.class.getField("name");
+        Set<String> listed = new HashSet<>(Arrays.asList(field.getAnnotation(Param.class).value()));
+        if (!listed.equals(operations.keySet())) {
+            Set<String> missing = new HashSet<>(operations.keySet()), unknown = new HashSet<>(listed);
+            missing.removeAll(listed);
+            unknown.removeAll(operations.keySet());
+            throw new IllegalArgumentException("the @Param list doesn't match the cases of Benchmarks, missing: " + missing + ", unknown: " + unknown);
+        }
+        operation = operations.get(name);
+    }
+
+    @Benchmark
+    public void run() {
+        operation.run();
+    }
+}